@@ -0,0 +1,35 @@
+package com.tracer.genericagent.build;
+
+import net.bytebuddy.build.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Applies {@link TracingBuildPlugin} to a folder of compiled classes, in place, for
+ * builds that don't use the byte-buddy-maven-plugin:
+ *
+ *   java -cp trace-build-weaver.jar:trace-standalone-agent.jar:... \
+ *        com.tracer.genericagent.build.PreWeaver target/classes [package,prefixes]
+ */
+public final class PreWeaver {
+
+    private PreWeaver() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PreWeaver <classes folder> [comma separated packages]");
+            System.exit(1);
+        }
+        File classes = new File(args[0]);
+        TracingBuildPlugin plugin = args.length > 1 ? new TracingBuildPlugin(args[1]) : new TracingBuildPlugin();
+
+        Plugin.Engine.Summary summary = new Plugin.Engine.Default()
+                .apply(classes, classes, new Plugin.Factory.Simple(plugin));
+        System.out.println("[TracingBuildPlugin] Woven " + summary.getTransformed().size() + " class(es), "
+                + summary.getFailed().size() + " failed, in " + classes);
+        if (!summary.getFailed().isEmpty()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.tracer.genericagent.build;
+
+import com.tracer.genericagent.instrumentation.EnhancedGenericMethodAdvisor;
+import com.tracer.genericagent.instrumentation.EntryPoints;
+import com.tracer.genericagent.instrumentation.InstallPlan;
+import com.tracer.genericagent.instrumentation.MethodRegistry;
+import com.tracer.genericagent.instrumentation.PreWoven;
+import com.tracer.genericagent.instrumentation.TrivialMethodDetector;
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.build.Plugin;
+import net.bytebuddy.description.annotation.AnnotationDescription;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.MethodList;
+import net.bytebuddy.description.modifier.FieldManifestation;
+import net.bytebuddy.description.modifier.Ownership;
+import net.bytebuddy.description.modifier.SyntheticState;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
+import net.bytebuddy.implementation.bytecode.member.FieldAccess;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * ByteBuddy build plugin that weaves the agent's advice into compiled classes, so
+ * the classes load with tracing already in place and the runtime agent has nothing
+ * left to do for them. Types and methods are chosen by the same InstallPlan the
+ * agent builds at startup, from the configuration visible to the build (set
+ * tracer.config.path) or from the packages given to the constructor.
+ *
+ * Method IDs cannot be constants here, since they are handed out by the registry of
+ * the running JVM. Each woven method gets a static final int field instead, which
+ * the class initializer fills from MethodRegistry.register, and the advice reads it.
+ * Woven classes are marked with @PreWoven, which the agent's type matcher skips.
+ * They need the agent on the class path at runtime. Entry points (entrypoint.*) are
+ * chosen from the call graph the running agent builds, so they can't be woven here.
+ */
+public class TracingBuildPlugin implements Plugin {
+
+    private static final String ID_FIELD_PREFIX = "tracer$methodId$";
+
+    private final InstallPlan plan;
+
+    public TracingBuildPlugin() {
+        this(ConfigReader.getPackagePrefixes());
+    }
+
+    /**
+     * @param packages comma separated package prefixes to weave, instead of instrument.packages
+     */
+    public TracingBuildPlugin(String packages) {
+        this(Arrays.asList(packages.split(",")));
+    }
+
+    private TracingBuildPlugin(List<String> packagePrefixes) {
+        if (EntryPoints.ENABLED) {
+            throw new IllegalStateException("Entry points (entrypoint.annotations, entrypoint.types) can't be"
+                    + " woven at build time; attach the agent at runtime instead");
+        }
+        this.plan = InstallPlan.create(packagePrefixes, EnhancedGenericMethodAdvisor.packageExcludes(),
+                ConfigReader.getMethodIncludes(), ConfigReader.getMethodExcludes());
+        System.out.println("[TracingBuildPlugin] Weaving " + plan.getPackagePrefixes()
+                + " with advice mode " + plan.getAdviceMode());
+    }
+
+    @Override
+    public boolean matches(TypeDescription target) {
+        return !target.isInterface()
+                && plan.getTypeMatcher().matches(target)
+                && !target.getDeclaredAnnotations().isAnnotationPresent(PreWoven.class)
+                && !target.getName().contains("genericagent.instrumentation");
+    }
+
+    @Override
+    public DynamicType.Builder<?> apply(DynamicType.Builder<?> builder,
+                                       TypeDescription typeDescription,
+                                       ClassFileLocator classFileLocator) {
+        // Marked even without eligible methods, so the agent doesn't examine the class again
+        builder = builder.annotateType(AnnotationDescription.Builder.ofType(PreWoven.class).build());
+
+        ElementMatcher<MethodDescription> methodMatcher = plan.methodMatcherFor(typeDescription.getName(),
+                TrivialMethodDetector.ENABLED
+                        ? TrivialMethodDetector.trivialMethods(classFileLocator, typeDescription.getName())
+                        : Collections.<String>emptySet());
+        MethodList<MethodDescription.InDefinedShape> methods =
+                typeDescription.getDeclaredMethods().filter(methodMatcher);
+        if (methods.isEmpty()) {
+            return builder;
+        }
+
+        Map<String, String> fieldsBySignature = new HashMap<>();
+        for (MethodDescription method : methods) {
+            String field = ID_FIELD_PREFIX + fieldsBySignature.size();
+            fieldsBySignature.put(method.getInternalName() + method.getDescriptor(), field);
+            builder = builder.defineField(field, int.class,
+                    Visibility.PRIVATE, Ownership.STATIC, FieldManifestation.FINAL, SyntheticState.SYNTHETIC);
+        }
+
+        Advice advice = Advice.withCustomMapping()
+                .bind(MethodRegistry.Id.class, new IdFieldMapping(fieldsBySignature))
+                .to(EnhancedGenericMethodAdvisor.adviceClass(plan.getAdviceMode()));
+
+        return builder
+                .initializer(new RegisterMethodIds(typeDescription.getName(), methods, fieldsBySignature))
+                .visit(advice.on(methodMatcher));
+    }
+
+    @Override
+    public void close() {
+        // Nothing held open
+    }
+
+    private static FieldDescription idField(TypeDescription instrumentedType, String name) {
+        return instrumentedType.getDeclaredFields().filter(named(name)).getOnly();
+    }
+
+    /**
+     * Binds @MethodRegistry.Id to the method's ID field.
+     */
+    private static final class IdFieldMapping implements Advice.OffsetMapping {
+
+        private final Map<String, String> fieldsBySignature;
+
+        IdFieldMapping(Map<String, String> fieldsBySignature) {
+            this.fieldsBySignature = fieldsBySignature;
+        }
+
+        @Override
+        public Target resolve(TypeDescription instrumentedType,
+                              MethodDescription instrumentedMethod,
+                              Assigner assigner,
+                              Advice.ArgumentHandler argumentHandler,
+                              Sort sort) {
+            String field = fieldsBySignature.get(instrumentedMethod.getInternalName() + instrumentedMethod.getDescriptor());
+            if (field == null) {
+                throw new IllegalStateException("No method ID field for " + instrumentedMethod);
+            }
+            return new Target.ForField.ReadOnly(idField(instrumentedType, field));
+        }
+    }
+
+    /**
+     * Class initializer code that registers every woven method and stores its ID.
+     */
+    private static final class RegisterMethodIds implements ByteCodeAppender {
+
+        private static final MethodDescription REGISTER;
+
+        static {
+            try {
+                REGISTER = new MethodDescription.ForLoadedMethod(
+                        MethodRegistry.class.getMethod("register", String.class, String.class, String.class));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private final String className;
+        private final List<MethodDescription> methods;
+        private final Map<String, String> fieldsBySignature;
+
+        RegisterMethodIds(String className, List<? extends MethodDescription> methods, Map<String, String> fieldsBySignature) {
+            this.className = className;
+            this.methods = new ArrayList<>(methods);
+            this.fieldsBySignature = fieldsBySignature;
+        }
+
+        @Override
+        public Size apply(MethodVisitor methodVisitor,
+                          Implementation.Context implementationContext,
+                          MethodDescription instrumentedMethod) {
+            List<StackManipulation> registrations = new ArrayList<>();
+            for (MethodDescription method : methods) {
+                FieldDescription field = idField(implementationContext.getInstrumentedType(),
+                        fieldsBySignature.get(method.getInternalName() + method.getDescriptor()));
+                registrations.add(new TextConstant(className));
+                registrations.add(new TextConstant(method.getInternalName()));
+                registrations.add(new TextConstant(method.getDescriptor()));
+                registrations.add(MethodInvocation.invoke(REGISTER));
+                registrations.add(FieldAccess.forField(field).write());
+            }
+            StackManipulation.Size size = new StackManipulation.Compound(registrations)
+                    .apply(methodVisitor, implementationContext);
+            return new Size(size.getMaximalSize(), instrumentedMethod.getStackSize());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+#!/usr/bin/env bash
+set -e
+
+# Runs InliningBenchmark with -XX:+PrintInlining and prints HotSpot's inlining decision for
+# the instrumented method at its call site in the caller, per advice variant. With the thin
+# advice the decision should read "inline (hot)"; the old inlined advice gets "hot method too big".
+
+JMH_JAR="performance-tests/target/performance-tests-1.0.0.jar"
+
+if [ ! -f "$JMH_JAR" ]; then
+  mvn -q package -DskipTests
+fi
+
+for advice in none thin inlined; do
+  echo "=== advice=$advice"
+  java -jar "$JMH_JAR" InliningBenchmark -p advice="$advice" -p traced=false \
+      -f 1 -wi 2 -w 1s -i 1 -r 1s \
+      -jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining" 2>&1 \
+    | grep 'InliningBenchmark\$Target::callee' \
+    | sed -E 's/^[[:space:]]*(![[:space:]]*)?@ [0-9]+ +//' | sort | uniq -c
+done
@@ -2,9 +2,11 @@
 package com.tracer.genericagent;
 
 
+import com.tracer.genericagent.instrumentation.AsyncEndSpanProcessor;
 import com.tracer.genericagent.instrumentation.EnhancedGenericMethodAdvisor;
 import com.tracer.genericagent.instrumentation.SystemMetrics;
 import com.tracer.genericagent.instrumentation.TraceFilteringSpanProcessor;
+import com.tracer.genericagent.instrumentation.TracerHolder;
 import com.tracer.genericagent.util.ConfigReader;
 
 
@@ -309,6 +311,11 @@ public class GenericByteBuddyAgent {
                     .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
                     .buildAndRegisterGlobal(); // This replaces the separate build() and set() calls
 
+            // 8) Metrics of the span end offload, now that the meter provider is global
+            if (spanProcessor instanceof AsyncEndSpanProcessor) {
+                ((AsyncEndSpanProcessor) spanProcessor).registerMetrics();
+            }
+
             // 9) optional graceful shutdown
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.err.println("[GenericByteBuddyAgent] Shutdown -> closing tracerProvider & meterProvider");
@@ -325,6 +332,9 @@ public class GenericByteBuddyAgent {
 
         // 10) Start system metrics regardless of who set up the SDK
         SystemMetrics.registerGauges();
+
+        // 11) Resolve the advice tracer against whichever SDK ended up global
+        TracerHolder.refresh();
     }
 
     private static SpanExporter buildExporterFromConfig() {
@@ -1063,12 +1073,18 @@ public class GenericByteBuddyAgent {
         }
 
         // Wrap the base processor with our trace filtering processor
+        SpanProcessor processor = baseProcessor;
         boolean slafilteringenabled = ConfigReader.isSlaFilteringEnabled();
         if(slafilteringenabled)
         {
-            return new TraceFilteringSpanProcessor(baseProcessor);
+            processor = new TraceFilteringSpanProcessor(baseProcessor);
+        }
+
+        // Optionally run the whole onEnd chain on a background thread instead of the app thread
+        if (ConfigReader.getBooleanProperty("span.end.async.enabled", false)) {
+            processor = new AsyncEndSpanProcessor(processor);
         }
-        return baseProcessor;
+        return processor;
     }
 
     private static Sampler buildSamplerFromConfig() {
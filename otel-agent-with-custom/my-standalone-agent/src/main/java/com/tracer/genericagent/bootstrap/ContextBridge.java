@@ -0,0 +1,88 @@
+package com.tracer.genericagent.bootstrap;
+
+/**
+ * Injected into the bootstrap class loader so that advice woven into JDK classes
+ * (ThreadPoolExecutor, ForkJoinPool, CompletableFuture) can reach the agent. It only
+ * depends on java.base; the actual wrapping is done by the Wrapper the agent
+ * registers, which lives with OpenTelemetry in the system class loader.
+ * Must not be loaded before the agent has injected it.
+ */
+public final class ContextBridge {
+
+    /**
+     * Wraps a task so that it runs in the context that was current when it was submitted.
+     */
+    public interface Wrapper {
+        Object wrap(Object task, int kind);
+
+        /**
+         * Remembers the current context for the task, which is handed on unchanged.
+         */
+        void capture(Runnable task);
+
+        /**
+         * Runs the task in the context captured for it, if any. Must let the task's own
+         * exceptions through and throw none of its own.
+         */
+        void run(Runnable task);
+    }
+
+    // Functional interface of the task being wrapped
+    public static final int RUNNABLE = 0;
+    public static final int CALLABLE = 1;
+    public static final int SUPPLIER = 2;
+    public static final int FUNCTION = 3;
+    public static final int CONSUMER = 4;
+    public static final int BI_FUNCTION = 5;
+    public static final int BI_CONSUMER = 6;
+
+    private static volatile Wrapper wrapper;
+
+    private ContextBridge() {}
+
+    public static void setWrapper(Wrapper newWrapper) {
+        wrapper = newWrapper;
+    }
+
+    /**
+     * Called from ThreadPoolExecutor.execute. Never throws.
+     */
+    public static void capture(Runnable task) {
+        Wrapper current = wrapper;
+        if (current == null || task == null) {
+            return;
+        }
+        try {
+            current.capture(task);
+        } catch (Throwable t) {
+            // The task runs without the context
+        }
+    }
+
+    /**
+     * Replaces the task.run() call in ThreadPoolExecutor.runWorker.
+     */
+    public static void run(Runnable task) {
+        Wrapper current = wrapper;
+        if (current == null) {
+            task.run();
+            return;
+        }
+        current.run(task);
+    }
+
+    /**
+     * Called from the woven JDK methods. Never throws: a task that cannot be wrapped runs as is.
+     */
+    public static Object wrap(Object task, int kind) {
+        Wrapper current = wrapper;
+        if (current == null || task == null) {
+            return task;
+        }
+        try {
+            return current.wrap(task, kind);
+        } catch (Throwable t) {
+            return task;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Changes the instrumented packages and method patterns of a running JVM, exposed as
+ * the MBean com.tracer.genericagent:type=AgentControl when control.jmx.enabled=true.
+ *
+ * A change builds a new InstallPlan and swaps it into the installed transformer, so
+ * classes loaded from then on follow the new rules. Loaded classes whose outcome
+ * changes are retransformed on a background thread, control.retransform.batch.size
+ * classes at a time with control.retransform.pause.ms between batches, so a large
+ * package does not stall the application. Changes are not persisted; the next start
+ * reads instrument.packages again.
+ *
+ * Enabling the control switches the agent to retransformable weaving (advice inlined
+ * into the original methods), as with governor.retransform.enabled.
+ */
+public final class AgentControl implements AgentControlMBean {
+
+    public static final boolean ENABLED =
+            ConfigReader.getBooleanProperty("control.jmx.enabled", false);
+    public static final int BATCH_SIZE =
+            Math.max(1, ConfigReader.getIntProperty("control.retransform.batch.size", 50));
+    public static final long BATCH_PAUSE_MS =
+            ConfigReader.getLongProperty("control.retransform.pause.ms", 100);
+
+    public static final String OBJECT_NAME = "com.tracer.genericagent:type=AgentControl";
+
+    private final Instrumentation inst;
+    private final ResettableClassFileTransformer transformer;
+    private final AtomicReference<InstallPlan> plans;
+    private final TransformCache cache;
+
+    // One thread, so retransformations run one change after another
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "custom-agent-control");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong retransformedClasses = new AtomicLong();
+    private final AtomicLong failedClasses = new AtomicLong();
+    private volatile String status = "idle";
+    private boolean removed;
+
+    AgentControl(Instrumentation inst,
+                 ResettableClassFileTransformer transformer,
+                 AtomicReference<InstallPlan> plans,
+                 TransformCache cache) {
+        this.inst = inst;
+        this.transformer = transformer;
+        this.plans = plans;
+        this.cache = cache;
+    }
+
+    /**
+     * Registers the MBean for the installed transformer and its plan reference.
+     */
+    public static void register(Instrumentation inst,
+                                ResettableClassFileTransformer transformer,
+                                AtomicReference<InstallPlan> plans,
+                                TransformCache cache) {
+        if (!inst.isRetransformClassesSupported()) {
+            System.err.println("[CustomAgent] Agent control not registered: retransformation is not supported");
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new AgentControl(inst, transformer, plans, cache), new ObjectName(OBJECT_NAME));
+            System.out.println("[EnhancedAdvisor] Agent control registered as " + OBJECT_NAME);
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Could not register agent control MBean: " + t.getMessage());
+        }
+    }
+
+    @Override
+    public String getPackages() {
+        return String.join(",", plans.get().getPackagePrefixes());
+    }
+
+    @Override
+    public String getIncludeMethods() {
+        return String.join(",", plans.get().getIncludeMethodPatterns());
+    }
+
+    @Override
+    public void setIncludeMethods(String patterns) {
+        InstallPlan current = plans.get();
+        change("include methods " + patterns, current.getPackagePrefixes(),
+                split(patterns), current.getExcludeMethodPatterns());
+    }
+
+    @Override
+    public String getExcludeMethods() {
+        return String.join(",", plans.get().getExcludeMethodPatterns());
+    }
+
+    @Override
+    public void setExcludeMethods(String patterns) {
+        InstallPlan current = plans.get();
+        change("exclude methods " + patterns, current.getPackagePrefixes(),
+                current.getIncludeMethodPatterns(), split(patterns));
+    }
+
+    @Override
+    public String getStatus() {
+        return status;
+    }
+
+    @Override
+    public long getRetransformedClasses() {
+        return retransformedClasses.get();
+    }
+
+    @Override
+    public long getFailedClasses() {
+        return failedClasses.get();
+    }
+
+    @Override
+    public void addPackage(String prefix) {
+        InstallPlan current = plans.get();
+        String trimmed = prefix == null ? "" : prefix.trim();
+        if (trimmed.isEmpty() || current.getPackagePrefixes().contains(trimmed)) {
+            return;
+        }
+        List<String> packages = new ArrayList<>(current.getPackagePrefixes());
+        packages.add(trimmed);
+        change("add package " + trimmed, packages,
+                current.getIncludeMethodPatterns(), current.getExcludeMethodPatterns());
+    }
+
+    @Override
+    public void removePackage(String prefix) {
+        InstallPlan current = plans.get();
+        String trimmed = prefix == null ? "" : prefix.trim();
+        if (!current.getPackagePrefixes().contains(trimmed)) {
+            return;
+        }
+        List<String> packages = new ArrayList<>(current.getPackagePrefixes());
+        packages.remove(trimmed);
+        change("remove package " + trimmed, packages,
+                current.getIncludeMethodPatterns(), current.getExcludeMethodPatterns());
+    }
+
+    /**
+     * Unregisters the transformer and restores every class it changed. Further changes are ignored.
+     */
+    @Override
+    public synchronized void removeAllInstrumentation() {
+        if (removed) {
+            return;
+        }
+        removed = true;
+        worker.execute(() -> {
+            status = "removing all instrumentation";
+            try {
+                transformer.reset(inst, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+                status = "instrumentation removed";
+            } catch (Throwable t) {
+                status = "removing instrumentation failed: " + t.getMessage();
+            }
+            System.err.println("[CustomAgent] Agent control: " + status);
+        });
+    }
+
+    /**
+     * Swaps in the plan for the new rules and queues the retransformation of the loaded
+     * classes whose instrumentation it changes.
+     */
+    private synchronized void change(String description,
+                                     List<String> packages,
+                                     List<String> includeMethods,
+                                     List<String> excludeMethods) {
+        if (removed) {
+            return;
+        }
+        InstallPlan previous = plans.get();
+        InstallPlan next = previous.withRules(packages, includeMethods, excludeMethods);
+        plans.set(next);
+        if (cache != null) {
+            cache.bypass();
+        }
+        System.err.println("[CustomAgent] Agent control: " + description + ", packages now " + next.getPackagePrefixes());
+
+        PackageTypeMatcher before = previous.getTypeMatcher();
+        PackageTypeMatcher after = next.getTypeMatcher();
+        // A profile selection is dropped, and entry points start a new plan with empty call graphs
+        boolean methodsChanged = previous.getSelection() != null || previous.getEntryPoints() != null
+                || !previous.getIncludeMethodPatterns().equals(next.getIncludeMethodPatterns())
+                || !previous.getExcludeMethodPatterns().equals(next.getExcludeMethodPatterns());
+
+        // Classes matched by both plans only need weaving again if the method rules changed
+        Predicate<String> affected = methodsChanged
+                ? name -> before.matches(name) || after.matches(name)
+                : name -> before.matches(name) != after.matches(name);
+        worker.execute(() -> retransform(description, affected));
+    }
+
+    private void retransform(String description, Predicate<String> affected) {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> loaded : inst.getAllLoadedClasses()) {
+            if (loaded.getClassLoader() != null
+                    && !loaded.isArray()
+                    && affected.test(loaded.getName())
+                    && inst.isModifiableClass(loaded)) {
+                classes.add(loaded);
+            }
+        }
+
+        int done = 0;
+        for (int from = 0; from < classes.size(); from += BATCH_SIZE) {
+            List<Class<?>> batch = classes.subList(from, Math.min(classes.size(), from + BATCH_SIZE));
+            status = description + ": retransforming " + done + "/" + classes.size();
+            retransformBatch(batch);
+            done += batch.size();
+            if (BATCH_PAUSE_MS > 0 && done < classes.size()) {
+                try {
+                    Thread.sleep(BATCH_PAUSE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    status = description + ": interrupted after " + done + "/" + classes.size();
+                    return;
+                }
+            }
+        }
+        status = description + ": retransformed " + done + " class(es)";
+        System.err.println("[CustomAgent] Agent control: " + status);
+    }
+
+    private void retransformBatch(List<Class<?>> batch) {
+        try {
+            inst.retransformClasses(batch.toArray(new Class<?>[0]));
+            retransformedClasses.addAndGet(batch.size());
+        } catch (Throwable batchFailure) {
+            // Find the classes that fail, so one bad class does not hold back the rest
+            for (Class<?> type : batch) {
+                try {
+                    inst.retransformClasses(type);
+                    retransformedClasses.incrementAndGet();
+                } catch (Throwable t) {
+                    failedClasses.incrementAndGet();
+                    System.err.println("[CustomAgent] Agent control could not retransform " + type.getName() + ": " + t);
+                }
+            }
+        }
+    }
+
+    private static List<String> split(String patterns) {
+        List<String> result = new ArrayList<>();
+        if (patterns != null) {
+            for (String pattern : patterns.split(",")) {
+                if (!pattern.trim().isEmpty()) {
+                    result.add(pattern.trim());
+                }
+            }
+        }
+        return result;
+    }
+}
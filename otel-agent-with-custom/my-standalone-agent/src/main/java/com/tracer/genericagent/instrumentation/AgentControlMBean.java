@@ -0,0 +1,29 @@
+package com.tracer.genericagent.instrumentation;
+
+/**
+ * JMX view of {@link AgentControl}. Lists are comma separated.
+ */
+public interface AgentControlMBean {
+
+    String getPackages();
+
+    String getIncludeMethods();
+
+    void setIncludeMethods(String patterns);
+
+    String getExcludeMethods();
+
+    void setExcludeMethods(String patterns);
+
+    String getStatus();
+
+    long getRetransformedClasses();
+
+    long getFailedClasses();
+
+    void addPackage(String prefix);
+
+    void removePackage(String prefix);
+
+    void removeAllInstrumentation();
+}
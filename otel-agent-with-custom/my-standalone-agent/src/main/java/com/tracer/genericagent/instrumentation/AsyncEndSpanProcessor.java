@@ -0,0 +1,318 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the onEnd work of the wrapped processor chain off application threads.
+ * span.end() on an application thread only appends the span to that thread's
+ * single-producer ring; a drainer thread runs the delegate's onEnd for all rings in
+ * batches, so trace filtering and the batch processor's queue no longer add to the
+ * latency of instrumented calls. Spans ended on one thread reach the delegate in the
+ * order they ended. A thread whose ring is full takes over from the drainer: it runs the
+ * delegate for the spans still in its ring, then for its own, so spans are never dropped
+ * or reordered. Virtual threads share one bounded queue instead of a ring each. The
+ * drainer parks while every ring is empty and is unparked by the next span. A delegate
+ * that throws for one span doesn't hold up the rest: failures are counted in the
+ * agent.span.end.failures metric, the first is logged, and every one with
+ * error.capture.verbose.logging. The wall-clock time each span was queued at travels
+ * with it, and endTimeMillis() gives it to the chain while the span is delivered.
+ * Enabled with span.end.async.enabled=true.
+ */
+public class AsyncEndSpanProcessor implements SpanProcessor {
+
+    private static final int RING_SIZE =
+            Integer.highestOneBit(Math.max(2, ConfigReader.getIntProperty("span.end.async.buffer.size", 1024)));
+    private static final int BATCH_SIZE =
+            Math.max(1, ConfigReader.getIntProperty("span.end.async.batch.size", 512));
+
+    private final SpanProcessor delegate;
+
+    private final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Ring> threadRing = ThreadLocal.withInitial(this::register);
+    private final ArrayBlockingQueue<QueuedSpan> virtualThreadQueue = new ArrayBlockingQueue<>(RING_SIZE);
+
+    // Queue time of the span being delivered on this thread, 0 when none
+    private static final ThreadLocal<long[]> DELIVERED_END_MILLIS = ThreadLocal.withInitial(() -> new long[1]);
+
+    // Held by whoever consumes the rings - the drainer, or forceFlush/shutdown - so each ring has one consumer
+    private final Object drainLock = new Object();
+    private final Thread drainer;
+    private volatile boolean running = true;
+    // Set while the drainer is parked or about to park; producers unpark it after an offer
+    private volatile boolean drainerParked;
+
+    private final AtomicLong inlineEnds = new AtomicLong();
+    private final AtomicLong failedEnds = new AtomicLong();
+
+    public AsyncEndSpanProcessor(SpanProcessor delegate) {
+        this.delegate = delegate;
+        this.drainer = new Thread(this::drainLoop, "custom-agent-span-end");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+        System.err.println("[CustomAgent] Span end offload enabled - ring size " + RING_SIZE +
+                ", batch size " + BATCH_SIZE);
+    }
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+        delegate.onStart(parentContext, span);
+    }
+
+    @Override
+    public boolean isStartRequired() {
+        return delegate.isStartRequired();
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+        Ring ring = VirtualThreads.isCurrentThreadVirtual() ? null : threadRing.get();
+        if (running) {
+            long endMillis = System.currentTimeMillis();
+            boolean queued = ring == null
+                    ? virtualThreadQueue.offer(new QueuedSpan(span, endMillis))
+                    : ring.offer(span, endMillis);
+            if (queued) {
+                // The drainer only parks once every ring is empty, so this span is what it waits for
+                if (drainerParked) {
+                    LockSupport.unpark(drainer);
+                }
+                return;
+            }
+        }
+        // Full, or shutting down: do the work here rather than lose the span, after the
+        // spans this thread ended earlier so the delegate still sees them in order
+        long drained = 0;
+        synchronized (drainLock) {
+            if (ring != null) {
+                drained = ring.drainTo(RING_SIZE);
+            } else {
+                QueuedSpan queuedSpan;
+                while ((queuedSpan = virtualThreadQueue.poll()) != null) {
+                    endQuietly(queuedSpan.span, queuedSpan.endMillis);
+                    drained++;
+                }
+            }
+        }
+        inlineEnds.addAndGet(drained + 1);
+        delegate.onEnd(span);
+    }
+
+    @Override
+    public boolean isEndRequired() {
+        return delegate.isEndRequired();
+    }
+
+    @Override
+    public CompletableResultCode forceFlush() {
+        drainAll();
+        return delegate.forceFlush();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        running = false;
+        drainer.interrupt();
+        drainAll();
+        if (inlineEnds.get() > 0) {
+            System.err.println("[CustomAgent] Span end offload: " + inlineEnds.get() +
+                    " span(s) were processed on the application thread because its buffer was full");
+        }
+        if (failedEnds.get() > 0) {
+            System.err.println("[CustomAgent] Span end offload: the span processor failed on " + failedEnds.get() +
+                    " span(s)");
+        }
+        return delegate.shutdown();
+    }
+
+    /**
+     * Registers the failure count as a metric; call once the SDK is global.
+     */
+    public void registerMetrics() {
+        try {
+            Meter meter = GlobalOpenTelemetry.getMeter("generic-agent-meter");
+            meter.counterBuilder("agent.span.end.failures")
+                    .setDescription("Spans the offloaded span processor chain threw on")
+                    .buildWithCallback(obs -> obs.record(failedEnds.get(), Attributes.empty()));
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Could not register span end metric: " + t.getMessage());
+        }
+    }
+
+    /**
+     * Spans processed on an ending thread because its buffer was full.
+     */
+    public long inlineEndCount() {
+        return inlineEnds.get();
+    }
+
+    /**
+     * Spans the delegate threw on while offloaded.
+     */
+    public long failedEndCount() {
+        return failedEnds.get();
+    }
+
+    /**
+     * The wall-clock time the span being ended was queued at when called from the chain
+     * during delivery, otherwise the current time: span processors behind this one use it
+     * instead of building the span's data for its end timestamp.
+     */
+    public static long endTimeMillis() {
+        long endMillis = DELIVERED_END_MILLIS.get()[0];
+        return endMillis != 0 ? endMillis : System.currentTimeMillis();
+    }
+
+    // Runs the delegate for a queued span; one bad span must not stall the rest
+    private void endQuietly(ReadableSpan span, long endMillis) {
+        long[] delivered = DELIVERED_END_MILLIS.get();
+        delivered[0] = endMillis;
+        try {
+            delegate.onEnd(span);
+        } catch (Throwable t) {
+            if (failedEnds.incrementAndGet() == 1 || SimplifiedGenericMethodAdvice.VERBOSE_LOGGING) {
+                System.err.println("[CustomAgent] Span end processor failed on span '" + span.getName()
+                        + "': " + t);
+            }
+        } finally {
+            delivered[0] = 0;
+        }
+    }
+
+    private Ring register() {
+        Ring ring = new Ring(Thread.currentThread());
+        rings.add(ring);
+        return ring;
+    }
+
+    private void drainLoop() {
+        while (running) {
+            try {
+                if (drainAll() == 0) {
+                    // Announce the park before the last look, so an offer after it sees the flag
+                    drainerParked = true;
+                    if (running && !hasPending()) {
+                        LockSupport.park(this);
+                    }
+                    drainerParked = false;
+                }
+            } catch (Throwable t) {
+                System.err.println("[CustomAgent] Span end drainer error: " + t.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One pass over every ring and the virtual-thread queue, at most BATCH_SIZE spans each.
+     */
+    private int drainAll() {
+        int drained = 0;
+        synchronized (drainLock) {
+            for (Ring ring : rings) {
+                int count = ring.drainTo(BATCH_SIZE);
+                drained += count;
+                if (count == 0 && ring.isOwnerGone() && ring.isEmpty()) {
+                    rings.remove(ring);
+                }
+            }
+            QueuedSpan queuedSpan;
+            for (int i = 0; i < BATCH_SIZE && (queuedSpan = virtualThreadQueue.poll()) != null; i++) {
+                endQuietly(queuedSpan.span, queuedSpan.endMillis);
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    private boolean hasPending() {
+        for (Ring ring : rings) {
+            if (!ring.isEmpty()) {
+                return true;
+            }
+        }
+        return !virtualThreadQueue.isEmpty();
+    }
+
+    private static final class QueuedSpan {
+        private final ReadableSpan span;
+        private final long endMillis;
+
+        private QueuedSpan(ReadableSpan span, long endMillis) {
+            this.span = span;
+            this.endMillis = endMillis;
+        }
+    }
+
+    /**
+     * Single-producer, single-consumer ring. The owning thread publishes with a
+     * volatile store of tail, which the parking drainer's last look is ordered against;
+     * the consumer frees slots with a release store of head.
+     */
+    private final class Ring {
+
+        private final ReadableSpan[] buffer = new ReadableSpan[RING_SIZE];
+        private final long[] endMillis = new long[RING_SIZE];
+        private final int mask = RING_SIZE - 1;
+        private final WeakReference<Thread> owner;
+
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        // Producer's last view of head, so a non-full ring doesn't read the consumer's counter
+        private long cachedHead;
+
+        Ring(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        boolean offer(ReadableSpan span, long spanEndMillis) {
+            long t = tail.get();
+            if (t - cachedHead == RING_SIZE) {
+                cachedHead = head.get();
+                if (t - cachedHead == RING_SIZE) {
+                    return false;
+                }
+            }
+            buffer[(int) t & mask] = span;
+            endMillis[(int) t & mask] = spanEndMillis;
+            tail.set(t + 1);
+            return true;
+        }
+
+        int drainTo(int max) {
+            long h = head.get();
+            long available = Math.min(tail.get() - h, max);
+            for (long i = 0; i < available; i++) {
+                int index = (int) (h + i) & mask;
+                ReadableSpan span = buffer[index];
+                buffer[index] = null;
+                endQuietly(span, endMillis[index]);
+            }
+            head.lazySet(h + available);
+            return (int) available;
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+
+        boolean isOwnerGone() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.tracer.genericagent.instrumentation;
+
+import net.bytebuddy.jar.asm.ClassReader;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.jar.asm.Handle;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.utility.OpenedClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The methods of one class loader reachable from entry points, each at the fewest calls
+ * below an entry point it was found at, for EntryPoints. Calls are read from the class
+ * files in the loader's resources, without loading the classes, and only calls into the
+ * instrumented packages are followed, up to the depth limit.
+ *
+ * A call is recorded against the type it names in the bytecode. For an interface or a
+ * superclass that is what a caller sees, so the implementations are matched through
+ * their supertypes when they are transformed (see {@link #depthOf}), and their own calls
+ * are followed from there. Every change bumps a generation, against which the transform
+ * generation of each class is compared to find classes woven before they were reached.
+ *
+ * Held per class loader by ClassLoaderMatcher; it never refers to the loader itself.
+ */
+public final class CallGraph {
+
+    // Parsed class files kept per class loader; the map is cleared when it grows past this
+    private static final int MAX_PARSED_CLASSES = 8192;
+
+    private final PackageTypeMatcher typeMatcher;
+    private final int maxDepth;
+
+    // "type#name descriptor" -> fewest calls below an entry point
+    private final Map<String, Integer> depths = new HashMap<>();
+    // Type -> generation at which one of its methods was last reached or got closer
+    private final Map<String, Integer> reachedAt = new HashMap<>();
+    // Type -> generation at which it was last transformed
+    private final Map<String, Integer> transformedAt = new HashMap<>();
+    private final Map<String, ClassCalls> parsed = new HashMap<>();
+    private int generation;
+
+    public CallGraph(PackageTypeMatcher typeMatcher, int maxDepth) {
+        this.typeMatcher = typeMatcher;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Records that the method (name plus descriptor) of the type is reached at the given
+     * depth, and follows its calls from the class file in the loader's resources.
+     */
+    public synchronized void reach(ClassLoader classLoader, String typeName, String method, int depth) {
+        Deque<Object[]> pending = new ArrayDeque<>();
+        pending.add(new Object[]{typeName, method, depth});
+        while (!pending.isEmpty()) {
+            Object[] call = pending.poll();
+            String type = (String) call[0];
+            String name = (String) call[1];
+            int callDepth = (Integer) call[2];
+
+            String key = type + "#" + name;
+            Integer known = depths.get(key);
+            if (callDepth > maxDepth || (known != null && known <= callDepth)) {
+                continue;
+            }
+            depths.put(key, callDepth);
+            reachedAt.put(type, ++generation);
+
+            ClassCalls calls = classCallsOf(classLoader, type);
+            if (calls == null) {
+                continue;
+            }
+            List<String[]> callees = calls.callees.get(name);
+            if (callees == null) {
+                // Inherited: the same call reaches the superclass's method
+                if (calls.superName != null && typeMatcher.matches(calls.superName)) {
+                    pending.add(new Object[]{calls.superName, name, callDepth});
+                }
+                continue;
+            }
+            if (callDepth < maxDepth) {
+                for (String[] callee : callees) {
+                    pending.add(new Object[]{callee[0], callee[1], callDepth + 1});
+                }
+            }
+        }
+    }
+
+    /**
+     * Fewest calls below an entry point at which the method is reached through any of the
+     * given type names (the type and its supertypes), or -1.
+     */
+    public synchronized int depthOf(Collection<String> typeNames, String method) {
+        int depth = -1;
+        for (String typeName : typeNames) {
+            Integer known = depths.get(typeName + "#" + method);
+            if (known != null && (depth < 0 || known < depth)) {
+                depth = known;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Notes that the type is being transformed with what has been reached so far.
+     */
+    public synchronized void transformed(String typeName) {
+        transformedAt.put(typeName, generation);
+    }
+
+    /**
+     * Whether the type was transformed before methods of any of the given type names (the
+     * type and its supertypes) were reached, so it has to be transformed again. Types
+     * never transformed here are not stale.
+     */
+    public synchronized boolean isStale(String typeName, Collection<String> typeNames) {
+        Integer transformed = transformedAt.get(typeName);
+        if (transformed == null) {
+            return false;
+        }
+        for (String name : typeNames) {
+            Integer reached = reachedAt.get(name);
+            if (reached != null && reached > transformed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int generation() {
+        return generation;
+    }
+
+    /**
+     * Methods reached so far.
+     */
+    public synchronized int size() {
+        return depths.size();
+    }
+
+    private ClassCalls classCallsOf(ClassLoader classLoader, String typeName) {
+        ClassCalls calls = parsed.get(typeName);
+        if (calls != null || parsed.containsKey(typeName)) {
+            return calls;
+        }
+        calls = parse(classLoader, typeName);
+        if (parsed.size() >= MAX_PARSED_CLASSES) {
+            parsed.clear();
+        }
+        parsed.put(typeName, calls);
+        return calls;
+    }
+
+    // The class's calls into the instrumented packages, or null when its class file can't be read
+    private ClassCalls parse(ClassLoader classLoader, String typeName) {
+        byte[] classFile;
+        try (InputStream in = classLoader.getResourceAsStream(typeName.replace('.', '/') + ".class")) {
+            if (in == null) {
+                return null;
+            }
+            classFile = in.readAllBytes();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        ClassCalls calls = new ClassCalls();
+        try {
+            OpenedClassReader.of(classFile).accept(new ClassVisitor(OpenedClassReader.ASM_API) {
+                @Override
+                public void visit(int version, int access, String name, String signature,
+                                  String superName, String[] interfaces) {
+                    calls.superName = superName == null ? null : superName.replace('/', '.');
+                }
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                                 String signature, String[] exceptions) {
+                    List<String[]> callees = new ArrayList<>();
+                    calls.callees.put(name + descriptor, callees);
+                    return new MethodVisitor(OpenedClassReader.ASM_API) {
+                        @Override
+                        public void visitMethodInsn(int opcode, String owner, String calleeName,
+                                                    String calleeDescriptor, boolean isInterface) {
+                            addCallee(callees, owner, calleeName, calleeDescriptor);
+                        }
+
+                        @Override
+                        public void visitInvokeDynamicInsn(String indyName, String indyDescriptor,
+                                                           Handle bootstrapMethodHandle,
+                                                           Object... bootstrapMethodArguments) {
+                            // Lambdas and method references call the method behind their handle
+                            for (Object argument : bootstrapMethodArguments) {
+                                if (argument instanceof Handle) {
+                                    Handle handle = (Handle) argument;
+                                    addCallee(callees, handle.getOwner(), handle.getName(), handle.getDesc());
+                                }
+                            }
+                        }
+                    };
+                }
+            }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return calls;
+    }
+
+    private void addCallee(List<String[]> callees, String owner, String name, String descriptor) {
+        if (owner.startsWith("[") || "<init>".equals(name) || "<clinit>".equals(name)) {
+            return;
+        }
+        String type = owner.replace('/', '.');
+        if (typeMatcher.matches(type)) {
+            callees.add(new String[]{type, name + descriptor});
+        }
+    }
+
+    /**
+     * A class file's superclass and the calls each of its methods makes into the
+     * instrumented packages, as (type, name plus descriptor).
+     */
+    private static final class ClassCalls {
+        private String superName;
+        private final Map<String, List<String[]>> callees = new HashMap<>();
+    }
+}
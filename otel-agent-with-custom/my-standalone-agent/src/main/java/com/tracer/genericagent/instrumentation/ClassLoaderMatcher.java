@@ -0,0 +1,289 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.bytebuddy.matcher.ElementMatchers.isExtensionClassLoader;
+
+/**
+ * Class loader aware type matching for the install plan. On application servers every
+ * deployment has its own class loader and loads the same libraries again, so the checks
+ * that need nothing but the class name run first, before ByteBuddy parses the class file:
+ * ByteBuddy's default ignore matcher reads every class to test isSynthetic().
+ *
+ * Each class loader is probed once, the first time it defines a class of an instrumented
+ * package. A loader is rejected when it can't contain application classes (the platform
+ * loader, reflection accessor loaders) or when it can't resolve the agent's own classes,
+ * in which case woven code would fail with NoClassDefFoundError on every call. The full
+ * match outcome, which reads the class's annotations, is cached per (class loader, class
+ * name), so retransformations don't parse the class again, and so are the trivial
+ * methods TrivialMethodDetector finds in it. With entry points, each loader also has the
+ * call graph of the methods its entry points reach.
+ *
+ * Loaders are held through WeakReferences and their state goes away with them on
+ * undeploy. The matcher belongs to one InstallPlan, so a new plan starts with empty caches.
+ * classloader.probe.enabled=false turns off the agent visibility probe.
+ */
+public final class ClassLoaderMatcher {
+
+    public static final boolean PROBE_ENABLED =
+            ConfigReader.getBooleanProperty("classloader.probe.enabled", true);
+
+    // Outcomes and analyses kept per class loader; a map is cleared when it grows past this
+    private static final int MAX_OUTCOMES_PER_LOADER = 8192;
+
+    // Loaders that only ever define generated classes
+    private static final Set<String> INFRASTRUCTURE_LOADERS = new HashSet<>(Arrays.asList(
+            "jdk.internal.reflect.DelegatingClassLoader",
+            "sun.reflect.DelegatingClassLoader",
+            "net.bytebuddy.dynamic.loading.ByteArrayClassLoader",
+            "net.bytebuddy.dynamic.loading.ByteArrayClassLoader$ChildFirst"
+    ));
+
+    private static final ElementMatcher<ClassLoader> EXTENSION_LOADER = isExtensionClassLoader();
+
+    private static final AtomicBoolean PRE_WOVEN_WARNED = new AtomicBoolean();
+
+    private final PackageTypeMatcher typeMatcher;
+    private final ProfileSelection selection;
+    private final Map<LoaderKey, LoaderState> states = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<>();
+
+    private final LongAdder probedLoaders = new LongAdder();
+    private final LongAdder rejectedLoaders = new LongAdder();
+    private final LongAdder cachedOutcomes = new LongAdder();
+
+    /**
+     * Matcher for the types of the type matcher; with a profile selection, only the types
+     * with selected methods.
+     */
+    public ClassLoaderMatcher(PackageTypeMatcher typeMatcher, ProfileSelection selection) {
+        this.typeMatcher = typeMatcher;
+        this.selection = selection;
+    }
+
+    /**
+     * Whether the type should be left alone without looking any further: the bootstrap
+     * loader, a name outside the instrumented packages, a rejected loader, or a synthetic
+     * type. Only the last one reads the class file.
+     */
+    public boolean isIgnored(TypeDescription typeDescription, ClassLoader classLoader) {
+        if (classLoader == null || !matchesName(typeDescription.getName())) {
+            return true;
+        }
+        return stateOf(classLoader).rejected || typeDescription.isSynthetic();
+    }
+
+    /**
+     * Whether a class of the given name defined by the loader may get the advice: its
+     * name is in the instrumented packages and the loader was not rejected. Decided
+     * without the class file.
+     */
+    public boolean accepts(String typeName, ClassLoader classLoader) {
+        return classLoader != null && matchesName(typeName) && !stateOf(classLoader).rejected;
+    }
+
+    /**
+     * Whether the type, not ignored, gets the advice. Classes woven at build time already
+     * carry it, and keep it as woven with entry points too. The outcome is remembered for
+     * the class loader.
+     */
+    public boolean matches(TypeDescription typeDescription, ClassLoader classLoader) {
+        if (classLoader == null) {
+            return false;
+        }
+        LoaderState state = stateOf(classLoader);
+        if (state.rejected) {
+            return false;
+        }
+        String name = typeDescription.getName();
+        Boolean outcome = state.outcomes.get(name);
+        if (outcome != null) {
+            cachedOutcomes.increment();
+            return outcome;
+        }
+        boolean preWoven = typeDescription.getDeclaredAnnotations().isAnnotationPresent(PreWoven.class);
+        if (preWoven && EntryPoints.ENABLED && PRE_WOVEN_WARNED.compareAndSet(false, true)) {
+            System.err.println("[CustomAgent] " + name + " and other classes woven at build time are traced"
+                    + " as woven: entry points don't apply to them");
+        }
+        boolean matched = matchesName(name) && !preWoven;
+        if (state.outcomes.size() >= MAX_OUTCOMES_PER_LOADER) {
+            state.outcomes.clear();
+        }
+        state.outcomes.put(name, matched);
+        return matched;
+    }
+
+    /**
+     * The class's trivial methods (name plus descriptor) as TrivialMethodDetector finds
+     * them, analyzed once per class loader and class; empty when detection is off.
+     */
+    public Set<String> trivialMethods(String className, ClassLoader classLoader) {
+        if (!TrivialMethodDetector.ENABLED || classLoader == null) {
+            return Collections.emptySet();
+        }
+        Map<String, Set<String>> analyzed = stateOf(classLoader).trivialMethods;
+        Set<String> trivial = analyzed.get(className);
+        if (trivial == null) {
+            trivial = TrivialMethodDetector.trivialMethods(classLoader, className);
+            if (analyzed.size() >= MAX_OUTCOMES_PER_LOADER) {
+                analyzed.clear();
+            }
+            analyzed.put(className, trivial);
+        }
+        return trivial;
+    }
+
+    /**
+     * The loader's call graph for EntryPoints, created on first use; null for the
+     * bootstrap loader and for rejected loaders.
+     */
+    public CallGraph callGraph(ClassLoader classLoader) {
+        if (classLoader == null) {
+            return null;
+        }
+        LoaderState state = stateOf(classLoader);
+        if (state.rejected) {
+            return null;
+        }
+        CallGraph graph = state.callGraph;
+        if (graph == null) {
+            synchronized (state) {
+                graph = state.callGraph;
+                if (graph == null) {
+                    graph = new CallGraph(typeMatcher, EntryPoints.CALL_DEPTH);
+                    state.callGraph = graph;
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * The loader's call graph if it has one, without probing the loader.
+     */
+    public CallGraph existingCallGraph(ClassLoader classLoader) {
+        LoaderState state = states.get(new LoaderKey(classLoader));
+        return state == null ? null : state.callGraph;
+    }
+
+    /**
+     * Loaders currently tracked, probed so far, rejected so far, and match outcomes
+     * served from the cache.
+     */
+    public String describe() {
+        return states.size() + " class loaders tracked, " + probedLoaders.sum() + " probed, "
+                + rejectedLoaders.sum() + " rejected, " + cachedOutcomes.sum() + " cached match outcomes reused";
+    }
+
+    private boolean matchesName(String name) {
+        return typeMatcher.matches(name) && (selection == null || selection.containsType(name));
+    }
+
+    private LoaderState stateOf(ClassLoader classLoader) {
+        LoaderState state = states.get(new LoaderKey(classLoader));
+        if (state != null) {
+            return state;
+        }
+        expungeCollected();
+        LoaderState probed = probe(classLoader);
+        state = states.putIfAbsent(new LoaderKey(classLoader, collected), probed);
+        return state != null ? state : probed;
+    }
+
+    private LoaderState probe(ClassLoader classLoader) {
+        probedLoaders.increment();
+        String reason = null;
+        if (INFRASTRUCTURE_LOADERS.contains(classLoader.getClass().getName())) {
+            reason = "defines generated classes only";
+        } else if (EXTENSION_LOADER.matches(classLoader)) {
+            reason = "platform class loader";
+        } else if (PROBE_ENABLED) {
+            reason = agentVisibility(classLoader);
+        }
+        if (reason == null) {
+            return new LoaderState(false);
+        }
+        rejectedLoaders.increment();
+        System.err.println("[CustomAgent] Not instrumenting classes of " + classLoader.getClass().getName()
+                + "@" + Integer.toHexString(System.identityHashCode(classLoader)) + ": " + reason);
+        return new LoaderState(true);
+    }
+
+    // Null when the loader resolves the agent classes the advice refers to, else the reason it doesn't
+    private static String agentVisibility(ClassLoader classLoader) {
+        try {
+            Class<?> registry = Class.forName(MethodRegistry.class.getName(), false, classLoader);
+            return registry == MethodRegistry.class ? null : "sees another copy of the agent classes";
+        } catch (ClassNotFoundException | LinkageError e) {
+            return "cannot see the agent classes (add com.tracer.genericagent to the system packages)";
+        }
+    }
+
+    private void expungeCollected() {
+        Reference<? extends ClassLoader> key;
+        while ((key = collected.poll()) != null) {
+            states.remove(key);
+        }
+    }
+
+    private static final class LoaderState {
+        private final boolean rejected;
+        private final Map<String, Boolean> outcomes = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> trivialMethods = new ConcurrentHashMap<>();
+        private volatile CallGraph callGraph;
+
+        private LoaderState(boolean rejected) {
+            this.rejected = rejected;
+        }
+    }
+
+    /**
+     * Weak map key comparing class loaders by identity. A key whose loader was collected
+     * only equals itself, which is how it is removed once dequeued.
+     */
+    private static final class LoaderKey extends WeakReference<ClassLoader> {
+        private final int hash;
+
+        private LoaderKey(ClassLoader classLoader) {
+            super(classLoader);
+            this.hash = System.identityHashCode(classLoader);
+        }
+
+        private LoaderKey(ClassLoader classLoader, ReferenceQueue<ClassLoader> queue) {
+            super(classLoader, queue);
+            this.hash = System.identityHashCode(classLoader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof LoaderKey)) {
+                return false;
+            }
+            ClassLoader classLoader = get();
+            return classLoader != null && classLoader == ((LoaderKey) other).get();
+        }
+    }
+}
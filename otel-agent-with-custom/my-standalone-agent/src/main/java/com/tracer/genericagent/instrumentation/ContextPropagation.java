@@ -0,0 +1,185 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.bootstrap.ContextBridge;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.MemberSubstitution;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ClassInjector;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Carries the active context across thread hops: ThreadPoolExecutor.execute,
+ * ForkJoinPool.execute/submit and the CompletableFuture *Async stages capture the
+ * context of the submitting thread, and the task runs in it on the worker thread.
+ * Without this, methods instrumented on a worker thread start new root traces.
+ *
+ * ThreadPoolExecutor tasks keep their identity, since the executor's queue (e.g. a
+ * PriorityBlockingQueue of Comparable tasks), remove(task), getQueue() and the
+ * beforeExecute/afterExecute hooks of subclasses all see them: execute only records the
+ * context against the task, and the task.run() call in runWorker is redirected to the
+ * bridge, which restores it.
+ *
+ * The advice is woven into JDK classes, so it can only see the bootstrap class loader;
+ * it calls ContextBridge, which is injected there, and the bridge calls back into
+ * ContextWrapper. Enabled with context.propagation.enabled=true.
+ */
+public final class ContextPropagation {
+
+    private static final String BRIDGE = "com.tracer.genericagent.bootstrap.ContextBridge";
+
+    private static boolean installed;
+
+    private ContextPropagation() {}
+
+    public static synchronized void install(Instrumentation inst) {
+        if (installed) {
+            return;
+        }
+        installed = true;
+
+        try {
+            injectBridge(inst);
+            ContextWrapper.register();
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Context propagation disabled, bridge injection failed: " + t.getMessage());
+            return;
+        }
+
+        try {
+            Class<?> bridge = Class.forName(BRIDGE, false, null);
+            Method runTask = bridge.getMethod("run", Runnable.class);
+            new AgentBuilder.Default()
+                    // JDK classes are ignored by default and are already loaded
+                    .ignore(none())
+                    .disableClassFormatChanges()
+                    .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                    .with(AgentBuilder.Listener.StreamWriting.toSystemOut().withErrorsOnly())
+                    .assureReadEdgeTo(inst, bridge)
+                    .type(named("java.util.concurrent.ThreadPoolExecutor"))
+                    .transform((builder, type, loader, module, domain) -> builder
+                            .visit(Advice.to(CaptureRunnable.class).on(named("execute").and(takesArguments(Runnable.class))))
+                            .visit(MemberSubstitution.relaxed()
+                                    .method(named("run").and(isDeclaredBy(Runnable.class)))
+                                    .replaceWith(runTask)
+                                    .on(named("runWorker"))))
+                    .type(named("java.util.concurrent.ForkJoinPool"))
+                    .transform((builder, type, loader, module, domain) -> builder
+                            .visit(Advice.to(WrapRunnable.class).on(
+                                    namedOneOf("execute", "submit").and(takesArgument(0, Runnable.class))))
+                            .visit(Advice.to(WrapCallable.class).on(
+                                    named("submit").and(takesArguments(Callable.class)))))
+                    .type(named("java.util.concurrent.CompletableFuture"))
+                    .transform((builder, type, loader, module, domain) -> builder
+                            .visit(Advice.to(WrapSupplier.class).on(asyncStage("supplyAsync", Supplier.class)))
+                            .visit(Advice.to(WrapRunnable.class).on(
+                                    asyncStage("runAsync", Runnable.class).or(asyncStage("thenRunAsync", Runnable.class))))
+                            .visit(Advice.to(WrapFunction.class).on(
+                                    asyncStage("thenApplyAsync", Function.class)
+                                            .or(asyncStage("thenComposeAsync", Function.class))
+                                            .or(asyncStage("exceptionallyAsync", Function.class))))
+                            .visit(Advice.to(WrapConsumer.class).on(asyncStage("thenAcceptAsync", Consumer.class)))
+                            .visit(Advice.to(WrapBiFunction.class).on(asyncStage("handleAsync", BiFunction.class)))
+                            .visit(Advice.to(WrapBiConsumer.class).on(asyncStage("whenCompleteAsync", BiConsumer.class))))
+                    .installOn(inst);
+            System.out.println("[EnhancedAdvisor] Context propagation installed for executors and CompletableFuture");
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Failed to install context propagation: " + t.getMessage());
+        }
+    }
+
+    private static ElementMatcher.Junction<MethodDescription> asyncStage(String name, Class<?> taskType) {
+        return named(name).and(takesArgument(0, taskType));
+    }
+
+    /**
+     * Appends the bridge classes to the bootstrap class path. Their bytes are read as
+     * resources, so the agent's own copies are never loaded by the system class loader.
+     */
+    private static void injectBridge(Instrumentation inst) throws Exception {
+        ClassFileLocator locator = ClassFileLocator.ForClassLoader.of(ContextPropagation.class.getClassLoader());
+        Map<String, byte[]> types = new HashMap<>();
+        types.put(BRIDGE, locator.locate(BRIDGE).resolve());
+        types.put(BRIDGE + "$Wrapper", locator.locate(BRIDGE + "$Wrapper").resolve());
+
+        File folder = Files.createTempDirectory("custom-agent-bootstrap").toFile();
+        folder.deleteOnExit();
+        ClassInjector.UsingInstrumentation
+                .of(folder, ClassInjector.UsingInstrumentation.Target.BOOTSTRAP, inst)
+                .injectRaw(types);
+    }
+
+    // ============= ADVICE (inlined into JDK classes, may only reference the bootstrap loader) =============
+
+    public static class CaptureRunnable {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(0) Runnable task) {
+            ContextBridge.capture(task);
+        }
+    }
+
+    public static class WrapRunnable {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+            task = (Runnable) ContextBridge.wrap(task, ContextBridge.RUNNABLE);
+        }
+    }
+
+    public static class WrapCallable {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(value = 0, readOnly = false) Callable<?> task) {
+            task = (Callable<?>) ContextBridge.wrap(task, ContextBridge.CALLABLE);
+        }
+    }
+
+    public static class WrapSupplier {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(value = 0, readOnly = false) Supplier<?> task) {
+            task = (Supplier<?>) ContextBridge.wrap(task, ContextBridge.SUPPLIER);
+        }
+    }
+
+    public static class WrapFunction {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(value = 0, readOnly = false) Function<?, ?> task) {
+            task = (Function<?, ?>) ContextBridge.wrap(task, ContextBridge.FUNCTION);
+        }
+    }
+
+    public static class WrapConsumer {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(value = 0, readOnly = false) Consumer<?> task) {
+            task = (Consumer<?>) ContextBridge.wrap(task, ContextBridge.CONSUMER);
+        }
+    }
+
+    public static class WrapBiFunction {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(value = 0, readOnly = false) BiFunction<?, ?, ?> task) {
+            task = (BiFunction<?, ?, ?>) ContextBridge.wrap(task, ContextBridge.BI_FUNCTION);
+        }
+    }
+
+    public static class WrapBiConsumer {
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static void onEnter(@Advice.Argument(value = 0, readOnly = false) BiConsumer<?, ?> task) {
+            task = (BiConsumer<?, ?>) ContextBridge.wrap(task, ContextBridge.BI_CONSUMER);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.bootstrap.ContextBridge;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Captures Context.current() when a task is handed to another thread and restores it
+ * while the task runs. With no active context (the root context) the task is returned
+ * as is, so uninstrumented code paths pay one ThreadLocal read per submit.
+ * ThreadPoolExecutor tasks are not wrapped: their context is kept against the task,
+ * weakly, until the worker runs it, so a task that never runs doesn't pin it.
+ * Only loaded after ContextBridge has been injected into the bootstrap class loader.
+ */
+public final class ContextWrapper implements ContextBridge.Wrapper {
+
+    private final Map<TaskKey, Context> captured = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Runnable> discarded = new ReferenceQueue<>();
+
+    static void register() {
+        ContextBridge.setWrapper(new ContextWrapper());
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Object wrap(Object task, int kind) {
+        Context context = Context.current();
+        if (context == Context.root()) {
+            return task;
+        }
+
+        switch (kind) {
+            case ContextBridge.RUNNABLE:
+                // Fork/join tasks and CompletableFuture's own stages are not wrapped: their
+                // identity matters to the pool, and the stage functions are wrapped instead
+                if (task instanceof ContextRunnable
+                        || task instanceof ForkJoinTask
+                        || task instanceof CompletableFuture.AsynchronousCompletionTask) {
+                    return task;
+                }
+                if (task instanceof RunnableFuture) {
+                    return new ContextRunnableFuture(context, (RunnableFuture) task);
+                }
+                return new ContextRunnable(context, (Runnable) task);
+            case ContextBridge.CALLABLE:
+                return context.wrap((Callable) task);
+            case ContextBridge.SUPPLIER:
+                return context.wrapSupplier((Supplier) task);
+            case ContextBridge.FUNCTION:
+                return context.wrapFunction((Function) task);
+            case ContextBridge.CONSUMER:
+                return context.wrapConsumer((Consumer) task);
+            case ContextBridge.BI_FUNCTION:
+                return context.wrapFunction((BiFunction) task);
+            case ContextBridge.BI_CONSUMER:
+                return context.wrapConsumer((BiConsumer) task);
+            default:
+                return task;
+        }
+    }
+
+    @Override
+    public void capture(Runnable task) {
+        Context context = Context.current();
+        if (context == Context.root() || task instanceof ContextRunnable) {
+            return;
+        }
+        Reference<? extends Runnable> key;
+        while ((key = discarded.poll()) != null) {
+            captured.remove(key);
+        }
+        captured.put(new TaskKey(task, discarded), context);
+    }
+
+    @Override
+    public void run(Runnable task) {
+        Context context = captured.isEmpty() ? null : captured.remove(new TaskKey(task, null));
+        if (context == null) {
+            task.run();
+            return;
+        }
+        try (Scope ignored = context.makeCurrent()) {
+            task.run();
+        }
+    }
+
+    /**
+     * Weak map key comparing tasks by identity, whatever their equals(). A key whose
+     * task was collected only equals itself, which is how it is removed once dequeued.
+     */
+    private static final class TaskKey extends WeakReference<Runnable> {
+        private final int hash;
+
+        private TaskKey(Runnable task, ReferenceQueue<Runnable> queue) {
+            super(task, queue);
+            this.hash = System.identityHashCode(task);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof TaskKey)) {
+                return false;
+            }
+            Runnable task = get();
+            return task != null && task == ((TaskKey) other).get();
+        }
+    }
+
+    /**
+     * Runnable that runs its delegate in the captured context.
+     */
+    static class ContextRunnable implements Runnable {
+
+        final Context context;
+        final Runnable delegate;
+
+        ContextRunnable(Context context, Runnable delegate) {
+            this.context = context;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            try (Scope ignored = context.makeCurrent()) {
+                delegate.run();
+            }
+        }
+    }
+
+    /**
+     * Keeps FutureTasks handed to ForkJoinPool.execute/submit usable as futures.
+     */
+    static final class ContextRunnableFuture extends ContextRunnable implements RunnableFuture<Object> {
+
+        private final RunnableFuture<Object> future;
+
+        ContextRunnableFuture(Context context, RunnableFuture<Object> future) {
+            super(context, future);
+            this.future = future;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+    }
+}
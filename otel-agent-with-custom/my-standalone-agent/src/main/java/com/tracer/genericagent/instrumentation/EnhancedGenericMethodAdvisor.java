@@ -2,17 +2,20 @@ package com.tracer.genericagent.instrumentation;
 
 import com.tracer.genericagent.util.ConfigReader;
 import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
 import net.bytebuddy.asm.Advice;
-import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.matcher.ElementMatcher;
 
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
-import static net.bytebuddy.matcher.ElementMatchers.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
  * Enhanced advisor that ensures proper exclusion of problematic libraries
@@ -27,17 +30,9 @@ public class EnhancedGenericMethodAdvisor {
             "sun.",
             "com.sun.",
             "jdk.",
-            "org.jboss.logmanager",
-            "org.slf4j",
-            "org.apache.log4j",
-            "ch.qos.logback",
-            "org.apache.logging",
-            "org.apache.cxf",
-            "org.jaxb",
-            "javax.xml.bind",
-            "com.sun.xml.bind",
-            "jakarta.xml.bind",
             "jakarta.",
+            "org.jaxb",
+            "org.apache.cxf",
             "com.fasterxml.jackson",
             "io.opentelemetry",
             "net.bytebuddy",
@@ -47,9 +42,7 @@ public class EnhancedGenericMethodAdvisor {
             "org.slf4j",
             "org.apache.log4j",
             "org.apache.logging",
-            "org.apache.logging.log4j",
             "ch.qos.logback",
-            "java.util.logging",
             "org.apache.commons.logging",
             "org.apache.juli",
             "org.apache.tomcat.juli",
@@ -57,24 +50,155 @@ public class EnhancedGenericMethodAdvisor {
             "org.wildfly.common.logger",
             // All Spring Framework packages
             "org.springframework",
-            "org.springframework.beans",
-            "org.springframework.context",
-            "org.springframework.web",
-            "org.springframework.core",
-            "org.springframework.aop",
-            "org.springframework.boot",
-            "org.springframework.util",
             "com.azure",
-            "com.azure.",
-            "com.microsoft.azure.",
             "com.microsoft",
-            "com.microsoft.",
 
             // Application-specific logging packages
             "com.geico.claims.common.integration.utility.logging"
             // Other exclusions
     );
 
+    // Never instrument classes whose name contains any of these
+    private static final List<String> EXCLUDED_NAME_FRAGMENTS = Arrays.asList(
+            // Known problematic packages
+            "jaxb",
+            "jaxws",
+            ".bytebuddy.",
+            ".opentelemetry.",
+            // Spring Framework specific exclusions
+            "BeanFactory",
+            "BeanCreation",
+            "ApplicationContext",
+            "ContextLoader",
+            // Log4j utility specific exclusions
+            "LoaderUtil",
+            "log4j.util",
+            "LogManager",
+            "Logger",
+            "Logging",
+            "Interpolator",
+            "ContextData",
+            "ClassLoaderContext",
+            "ReflectionUtil",
+            // Proxy classes - prevents JBoss EJB proxy issues
+            "$$$view",          // JBoss EJB view proxies
+            "$Proxy",           // JDK dynamic proxies
+            "$$EnhancedBy",     // Enhancement frameworks
+            "FastClass",        // CGLIB proxies
+            "$$_javassist_",    // Javassist proxies
+            "$HibernateProxy",  // Hibernate proxies
+            "_WeldClientProxy", // CDI proxies
+            "$EJBClient"        // EJB client proxies
+    );
+
+    /**
+     * Type matcher for classes in the given packages, minus the excluded packages,
+     * the excluded name fragments and anonymous inner classes.
+     */
+    public static PackageTypeMatcher buildTypeMatcher(List<String> packagePrefixes, List<String> excludes) {
+        return new PackageTypeMatcher(packagePrefixes, excludes, EXCLUDED_NAME_FRAGMENTS, true);
+    }
+
+    /**
+     * The critical excludes followed by the configured ones.
+     */
+    public static List<String> packageExcludes() {
+        List<String> allExcludes = new ArrayList<>(CRITICAL_EXCLUDES);
+        allExcludes.addAll(ConfigReader.getPackageExcludes());
+        return allExcludes;
+    }
+
+    /**
+     * Builds the advice for the given advice.mode: "handoff" keeps the span in advice locals,
+     * "lazy" only creates spans for slow or failing calls, anything else uses the per-thread span stack.
+     * Binds @MethodRegistry.Id so every woven method gets its descriptor-table ID as a constant.
+     */
+    public static Advice buildAdvice(String adviceMode) {
+        return Advice.withCustomMapping()
+                .bind(MethodRegistry.Id.class, new MethodRegistry.IdMapping())
+                .to(adviceClass(adviceMode));
+    }
+
+    /**
+     * The advice class for the given advice.mode.
+     */
+    public static Class<?> adviceClass(String adviceMode) {
+        if ("handoff".equals(adviceMode)) {
+            return HandoffMethodAdvice.class;
+        } else if ("lazy".equals(adviceMode)) {
+            return LazyMethodAdvice.class;
+        }
+        return SimplifiedGenericMethodAdvice.class;
+    }
+
+    /**
+     * AgentBuilder that weaves the plan's advice into the plan's types and methods.
+     */
+    public static AgentBuilder buildAgentBuilder(InstallPlan plan) {
+        return buildAgentBuilder(() -> plan);
+    }
+
+    /**
+     * AgentBuilder that consults the current plan on every match and transform, so the
+     * plan can be replaced at runtime. The retransform setting is taken from the first plan.
+     */
+    public static AgentBuilder buildAgentBuilder(Supplier<InstallPlan> plans) {
+        InstallPlan initialPlan = plans.get();
+
+        // Use the most basic AgentBuilder configuration for compatibility
+        AgentBuilder agentBuilder = new AgentBuilder.Default()
+                .with(AgentBuilder.Listener.StreamWriting.toSystemOut().withErrorsOnly());
+
+        // Retransformation needs the advice inlined into the original methods, without new members
+        if (initialPlan.isRetransform()) {
+            agentBuilder = agentBuilder
+                    .disableClassFormatChanges()
+                    .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+        }
+
+        return agentBuilder
+                // Name and class loader checks replace the default ignore matcher, so classes
+                // outside the instrumented packages are never parsed
+                .ignore((typeDescription, classLoader, module, classBeingRedefined, protectionDomain) ->
+                        plans.get().getClassLoaderMatcher().isIgnored(typeDescription, classLoader))
+                .type((typeDescription, classLoader, module, classBeingRedefined, protectionDomain) ->
+                        plans.get().getClassLoaderMatcher().matches(typeDescription, classLoader))
+                .transform((builder, typeDescription, classLoader, module, protectionDomain) -> {
+                    InstallPlan plan = plans.get();
+
+                    // Don't instrument our own agent classes
+                    String className = typeDescription.getName();
+                    if (className.contains("genericagent.instrumentation")) {
+                        return builder;
+                    }
+
+                    // Log the class we're instrumenting
+                  //  System.out.println("[EnhancedAdvisor] Instrumenting: " + className);
+
+                    long start = System.nanoTime();
+                    if (TransformTelemetry.ENABLED) {
+                        TransformTelemetry.transformStarted();
+                    }
+                    try {
+                        if (plan.isRetransform()) {
+                            // Methods switched off by the governor lose their advice on retransformation
+                            return builder.visit(plan.getAdvice().on(plan.methodMatcherFor(typeDescription, classLoader)));
+                        }
+
+                        // Revert to the original approach without specifying ClassLoader
+                        return builder
+                                .method(plan.methodMatcherFor(typeDescription, classLoader))
+                                .intercept(plan.getAdvice());
+                    } catch (Throwable t) {
+                        System.err.println("[EnhancedAdvisor] ERROR applying instrumentation to " + className + ": " + t.getMessage());
+                        t.printStackTrace();
+                        return builder;
+                    } finally {
+                        plan.recordTransform(start);
+                    }
+                });
+    }
+
     public static void install(
             Instrumentation inst,
             List<String> packagePrefixes,      // packages to instrument
@@ -90,161 +214,130 @@ public class EnhancedGenericMethodAdvisor {
             t.printStackTrace();
         }
 
-        // Get configured excludes
-        List<String> configExcludes = ConfigReader.getPackageExcludes();
-
-        // Combine with critical excludes
-        List<String> allExcludes = new ArrayList<>(CRITICAL_EXCLUDES);
-        allExcludes.addAll(configExcludes);
+        List<String> allExcludes = packageExcludes();
 
         System.out.println("[EnhancedAdvisor] Installing with packages: " + packagePrefixes);
         System.out.println("[EnhancedAdvisor] Excluded packages: " + allExcludes);
         System.out.println("[EnhancedAdvisor] Include methods: " + includeMethodPatterns);
         System.out.println("[EnhancedAdvisor] Exclude methods: " + excludeMethodPatterns);
 
-        // Use the most basic AgentBuilder configuration for compatibility
-        AgentBuilder agentBuilder = new AgentBuilder.Default()
-                .with(AgentBuilder.Listener.StreamWriting.toSystemOut().withErrorsOnly());
+        // Matchers and advice are composed once here and shared by every transform
+        InstallPlan plan = InstallPlan.create(packagePrefixes, allExcludes, includeMethodPatterns, excludeMethodPatterns);
+        System.out.println("[EnhancedAdvisor] Advice mode: " + plan.getAdviceMode());
+        System.out.println("[EnhancedAdvisor] Type matcher: " + plan.getTypeMatcher());
 
-        // For each *included* package prefix, transform matching classes
-        for (String prefix : packagePrefixes) {
-            // Build initial type matcher for this package
-            ElementMatcher.Junction<TypeDescription> typeMatcher = nameStartsWith(prefix);
-
-            // Exclude all packages that should not be instrumented
-            for (String exPkg : allExcludes) {
-                typeMatcher = typeMatcher.and(not(nameStartsWith(exPkg)));
+        // Optional: instrument only the methods a profile shows to be slow
+        if (ProfileSelection.ENABLED) {
+            ProfileSelection selection = ProfileSelection.load(Paths.get(ProfileSelection.PLAN_FILE), packagePrefixes);
+            if (selection != null) {
+                System.out.println("[EnhancedAdvisor] Using profile plan " + ProfileSelection.PLAN_FILE + ": " + selection);
+                plan = plan.withSelection(selection);
+            } else if (!ProfileSelection.JFR_FILE.isEmpty()) {
+                plan = profiled(plan, Paths.get(ProfileSelection.JFR_FILE));
+            } else {
+                profileThenInstall(inst, plan);
+                return;
             }
+        }
+        installPlan(inst, plan);
+    }
 
-            // Extra safety check - don't instrument known problematic packages
-            typeMatcher = typeMatcher
-                    .and(not(nameContains("jaxb")))
-                    .and(not(nameContains("jaxws")))
-                    .and(not(nameContains(".bytebuddy.")))
-                    .and(not(nameContains(".opentelemetry.")))
-                    // Spring Framework specific exclusions
-                    .and(not(nameContains("BeanFactory")))
-                    .and(not(nameContains("BeanCreation")))
-                    .and(not(nameContains("ApplicationContext")))
-                    .and(not(nameContains("ContextLoader")))
-                    // Log4j utility specific exclusions
-                    .and(not(nameContains("LoaderUtil")))
-                    .and(not(nameContains("log4j.util")))
-                    .and(not(nameContains("LogManager")))
-                    . and(not(nameContains("Logger")))
-                    .and(not(nameContains("Logging")))
-                    .and(not(nameContains("Interpolator")))
-                    .and(not(nameContains("ContextData")))
-                    .and(not(nameContains("ClassLoaderContext")))
-                    .and(not(nameContains("ReflectionUtil")));
-
-            // Exclude all proxy classes by name pattern - prevents JBoss EJB proxy issues
-            typeMatcher = typeMatcher
-                    .and(not(nameContains("$$$view")))       // JBoss EJB view proxies
-                    .and(not(nameContains("$Proxy")))        // JDK dynamic proxies
-                    .and(not(nameContains("$$EnhancedBy")))  // Enhancement frameworks
-                    .and(not(nameContains("FastClass")))     // CGLIB proxies
-                    .and(not(nameContains("$$_javassist_"))) // Javassist proxies
-                    .and(not(nameContains("$HibernateProxy"))) // Hibernate proxies
-                    .and(not(nameContains("_WeldClientProxy"))) // CDI proxies
-                    .and(not(nameContains("$EJBClient")))    // EJB client proxies
-                    .and(not(nameMatches(".*\\$\\d+$")));    // Anonymous inner classes
-
+    /**
+     * Records a profile for profile.duration.ms on a daemon thread, then installs the plan
+     * restricted to the methods it selects. Classes loaded meanwhile are retransformed.
+     */
+    private static void profileThenInstall(Instrumentation inst, InstallPlan plan) {
+        System.out.println("[EnhancedAdvisor] Profiling for " + ProfileSelection.DURATION_MS
+                + " ms before installing instrumentation");
+        Thread profilerThread = new Thread(() -> {
+            InstallPlan next = plan;
+            try {
+                Path recording = JfrProfiler.record(ProfileSelection.DURATION_MS, ProfileSelection.SAMPLE_PERIOD_MS);
+                try {
+                    next = profiled(plan, recording);
+                } finally {
+                    Files.deleteIfExists(recording);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable t) {
+                System.err.println("[EnhancedAdvisor] Profiling failed, instrumenting all configured methods: " + t);
+            }
+            installPlan(inst, next);
+        }, "custom-agent-profiler");
+        profilerThread.setDaemon(true);
+        profilerThread.start();
+    }
 
-            agentBuilder = agentBuilder
-                    .type(typeMatcher)
-                    .transform((builder, typeDescription, classLoader, module, protectionDomain) -> {
-                        // Skip problematic classloaders
-                        if (classLoader == null) {
-                            System.out.println("[EnhancedAdvisor] Skipping null classloader for: " + typeDescription.getName());
-                            return builder;
-                        }
+    /**
+     * The plan restricted to the methods ranked from the recording, which is saved to
+     * profile.plan.file. The plan itself when the recording can't be read.
+     */
+    private static InstallPlan profiled(InstallPlan plan, Path recording) {
+        ProfileSelection selection;
+        try {
+            selection = JfrProfiler.rank(recording, plan.getPackagePrefixes(), plan.getTypeMatcher(),
+                    ProfileSelection.SAMPLE_PERIOD_MS, ProfileSelection.TOP_METHODS, ProfileSelection.MIN_CALL_MS);
+        } catch (Throwable t) {
+            // Also a JVM without jdk.jfr
+            System.err.println("[EnhancedAdvisor] Could not rank methods from " + recording
+                    + ", instrumenting all configured methods: " + t);
+            return plan;
+        }
+        System.out.println("[EnhancedAdvisor] Profile selected " + selection.getMethods().size() + " methods:");
+        for (ProfileSelection.Entry entry : selection.getMethods()) {
+            System.out.println("[EnhancedAdvisor]   " + entry);
+        }
+        selection.save(Paths.get(ProfileSelection.PLAN_FILE));
+        return plan.withSelection(selection);
+    }
 
-                        // Don't instrument our own agent classes
-                        String className = typeDescription.getName();
-                        if (className.contains("genericagent.instrumentation")) {
-                            return builder;
-                        }
+    private static void installPlan(Instrumentation inst, InstallPlan plan) {
+        AtomicReference<InstallPlan> plans = new AtomicReference<>(plan);
+        AgentBuilder agentBuilder = buildAgentBuilder(plans::get);
 
-                        // Log the class we're instrumenting
-                      //  System.out.println("[EnhancedAdvisor] Instrumenting: " + className);
-
-                        // Build method matchers
-                        ElementMatcher.Junction<MethodDescription> includeMatcher;
-                        if (includeMethodPatterns == null || includeMethodPatterns.isEmpty()) {
-                            includeMatcher = any();
-                        } else {
-                            includeMatcher = none();
-                            for (String inc : includeMethodPatterns) {
-                                includeMatcher = includeMatcher.or(named(inc));
-                            }
-                        }
+        // Trivial methods are found from the bytes being transformed, not a second read of the class file
+        if (TrivialMethodDetector.ENABLED) {
+            agentBuilder = agentBuilder.with(new TrivialMethodDetector.ClassFileCapture());
+        }
 
-                        ElementMatcher.Junction<MethodDescription> excludeMatcher = none();
-                        if (excludeMethodPatterns != null && !excludeMethodPatterns.isEmpty()) {
-                            for (String exc : excludeMethodPatterns) {
-                                excludeMatcher = excludeMatcher.or(nameContains(exc));
-                            }
-                        }
+        // Per-class match and weave times, published as metrics and in the startup report
+        TransformTelemetry telemetry = null;
+        if (TransformTelemetry.ENABLED) {
+            telemetry = new TransformTelemetry();
+            telemetry.registerMetrics();
+            agentBuilder = agentBuilder.with(telemetry);
+        }
 
-                        // Final method matcher with safety filters
-                        ElementMatcher.Junction<MethodDescription> finalMatcher =
-                                includeMatcher.and(not(excludeMatcher))
-                                        .and(isPublic().or(isPrivate()))
-                                        .and(not(isConstructor()))
-                                        .and(not(isAbstract()))
-                                        .and(not(isNative()))
-
-                        // 1. Standard getters/setters
-                .and(not(nameStartsWith("get").and(takesNoArguments())))
-                                .and(not(nameStartsWith("set").and(takesArguments(1))))
-                                .and(not(nameStartsWith("is").and(takesNoArguments())))
-
-                                // 2. Object class standard methods - typically low value
-                                .and(not(named("equals").and(takesArguments(1))))
-                                .and(not(named("hashCode").and(takesNoArguments())))
-                                .and(not(named("toString").and(takesNoArguments())))
-
-                                // 3. Collection-related basic operations
-                                .and(not(named("size").and(takesNoArguments())))
-                                .and(not(named("isEmpty").and(takesNoArguments())))
-                                .and(not(named("contains").and(takesArguments(1))))
-                                .and(not(named("iterator").and(takesNoArguments())))
-                                .and(not(named("toArray").and(takesNoArguments().or(takesArguments(1)))))
-
-                                // 4. Common functional interface methods
-                                .and(not(named("apply").or(named("accept")).or(named("test")).or(named("get"))))
-                                .and(not(named("compare").and(takesArguments(2))))
-                                .and(not(named("compareTo").and(takesArguments(1))))
-
-                                // 5. Serialization/conversion methods
-                                .and(not(nameStartsWith("to").and(not(nameContains("_")))))
-                                .and(not(nameStartsWith("from").and(not(nameContains("_")))))
-                                .and(not(named("readObject").or(named("writeObject"))))
-                                .and(not(named("clone").and(takesNoArguments())))
-
-                                // 6. Utility and helper methods
-                                .and(not(nameContains("helper").or(nameContains("Helper"))))
-                                .and(not(nameContains("util").or(nameContains("Util"))))
-                                .and(not(nameContains("internal").or(nameContains("Internal"))));
-
-                        try {
-                            // Revert to the original approach without specifying ClassLoader
-                            return builder
-                                    .method(finalMatcher)
-                                    .intercept(Advice.to(SimplifiedGenericMethodAdvice.class));
-                        } catch (Throwable t) {
-                            System.err.println("[EnhancedAdvisor] ERROR applying instrumentation to " + className + ": " + t.getMessage());
-                            t.printStackTrace();
-                            return builder;
-                        }
-                    });
+        // Optional: serve woven classes from disk on later boots
+        TransformCache cache = TransformCache.open(plan);
+        if (cache != null) {
+            agentBuilder = agentBuilder.with(cache).with(cache.errorListener());
         }
 
         // Install the instrumentation
         try {
-            agentBuilder.installOn(inst);
+            ResettableClassFileTransformer transformer = agentBuilder.installOn(inst);
             System.out.println("[EnhancedAdvisor] Successfully installed instrumentation");
+
+            // Optional: JMX operations to change the instrumented packages and methods at runtime
+            if (AgentControl.ENABLED) {
+                AgentControl.register(inst, transformer, plans, cache);
+            }
+            MethodGovernor.start(inst);
+            EntryPoints.start(inst, plans::get);
+            plan.scheduleReport(cache, telemetry);
+
+            // Only the stack advice keeps spans in per-thread state that can leak
+            if ("stack".equals(SimplifiedGenericMethodAdvice.ADVICE_MODE)) {
+                SpanStackRegistry.start();
+            }
+
+            // Optional: carry the active context into thread pools and async stages
+            if (ConfigReader.getBooleanProperty("context.propagation.enabled", false)) {
+                ContextPropagation.install(inst);
+            }
         } catch (Exception e) {
             System.err.println("[EnhancedAdvisor] Failed to install instrumentation: " + e.getMessage());
             e.printStackTrace();
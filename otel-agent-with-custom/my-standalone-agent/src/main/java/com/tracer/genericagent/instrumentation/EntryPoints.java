@@ -0,0 +1,278 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.description.annotation.AnnotationList;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDefinition;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static net.bytebuddy.matcher.ElementMatchers.isOverriddenFrom;
+import static net.bytebuddy.matcher.ElementMatchers.namedOneOf;
+
+/**
+ * Entry-point instrumentation: instead of every method of instrument.packages, only the
+ * request entry points and the methods they call, down to entrypoint.call.depth calls
+ * below them. An entry point is a method annotated with one of entrypoint.annotations,
+ * a public method of a type annotated with one of them (e.g. @RestController, @Service,
+ * @Transactional, or an application's own @Traced), or a method that implements one of
+ * entrypoint.types (e.g. javax.servlet.Servlet or an application's Handler interface).
+ * Entry points are only looked for in instrument.packages.
+ *
+ * The calls below an entry point are read from the class files (see CallGraph), so a
+ * class that is loaded before the entry point that reaches it is woven without advice
+ * at first; a daemon thread retransforms such classes once the entry point has been
+ * seen. Methods below entry points only trace calls inside an existing trace: called
+ * from elsewhere, e.g. a scheduled job, they don't start traces of their own.
+ *
+ * Entry points are decided while weaving, so they don't combine with transform.cache.dir,
+ * which is then turned off, nor with the build-time weaver, which refuses them; classes
+ * woven at build time keep tracing every woven method.
+ */
+public final class EntryPoints {
+
+    public static final List<String> ANNOTATIONS =
+            split(ConfigReader.getProperty("entrypoint.annotations", ""));
+    public static final List<String> TYPES =
+            split(ConfigReader.getProperty("entrypoint.types", ""));
+    public static final int CALL_DEPTH =
+            Math.max(0, ConfigReader.getIntProperty("entrypoint.call.depth", 3));
+    public static final long CATCHUP_INTERVAL_MS =
+            ConfigReader.getLongProperty("entrypoint.catchup.interval.ms", 1000);
+    public static final boolean ENABLED = !ANNOTATIONS.isEmpty() || !TYPES.isEmpty();
+
+    private static final Set<String> ANNOTATION_NAMES = new HashSet<>(ANNOTATIONS);
+    private static final ElementMatcher<MethodDescription> IMPLEMENTS_ENTRY_TYPE =
+            isOverriddenFrom(namedOneOf(TYPES.toArray(new String[0])));
+
+    // Set when a call graph grows, so the catch-up thread looks for classes woven too early
+    private static volatile boolean graphChanged;
+    private static boolean started;
+
+    private final PackageTypeMatcher typeMatcher;
+    private final ClassLoaderMatcher classLoaderMatcher;
+
+    // Methods selected so far, as "type#name descriptor"; retransformations select them again
+    private final Set<String> entryMethods = ConcurrentHashMap.newKeySet();
+    private final Set<String> reachedMethods = ConcurrentHashMap.newKeySet();
+    private final LongAdder caughtUpClasses = new LongAdder();
+
+    public EntryPoints(PackageTypeMatcher typeMatcher, ClassLoaderMatcher classLoaderMatcher) {
+        this.typeMatcher = typeMatcher;
+        this.classLoaderMatcher = classLoaderMatcher;
+    }
+
+    /**
+     * Whether the method of the type is an entry point.
+     */
+    public static boolean isEntryPoint(TypeDescription typeDescription, MethodDescription method) {
+        return isEntryPoint(hasEntryAnnotation(typeDescription.getInheritedAnnotations()), method);
+    }
+
+    private static boolean isEntryPoint(boolean annotatedType, MethodDescription method) {
+        if (method.isConstructor() || method.isTypeInitializer()) {
+            return false;
+        }
+        if ((annotatedType && method.isPublic()) || hasEntryAnnotation(method.getDeclaredAnnotations())) {
+            return true;
+        }
+        return !TYPES.isEmpty() && !method.isStatic() && IMPLEMENTS_ENTRY_TYPE.matches(method);
+    }
+
+    private static boolean hasEntryAnnotation(AnnotationList annotations) {
+        if (ANNOTATION_NAMES.isEmpty()) {
+            return false;
+        }
+        for (TypeDescription annotation : annotations.asTypeList()) {
+            if (ANNOTATION_NAMES.contains(annotation.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The methods of the type to instrument: its entry points, and its methods reached
+     * from entry points within the depth limit, directly or through a supertype. The
+     * calls of both are added to the class loader's call graph.
+     */
+    public ElementMatcher.Junction<MethodDescription> methodsOf(TypeDescription typeDescription, ClassLoader classLoader) {
+        Set<String> selected = new HashSet<>();
+        CallGraph graph = classLoaderMatcher.callGraph(classLoader);
+        if (graph != null) {
+            String typeName = typeDescription.getName();
+            int generation = graph.generation();
+            boolean annotatedType = hasEntryAnnotation(typeDescription.getInheritedAnnotations());
+            List<MethodDescription> others = new ArrayList<>();
+            for (MethodDescription method : typeDescription.getDeclaredMethods()) {
+                if (method.isAbstract() || method.isNative()) {
+                    continue;
+                }
+                String key = method.getInternalName() + method.getDescriptor();
+                if (isEntryPoint(annotatedType, method)) {
+                    graph.reach(classLoader, typeName, key, 0);
+                    selected.add(key);
+                    entryMethods.add(typeName + "#" + key);
+                } else {
+                    others.add(method);
+                }
+            }
+            if (!others.isEmpty()) {
+                Set<String> typeNames = hierarchyOf(typeDescription);
+                for (MethodDescription method : others) {
+                    String key = method.getInternalName() + method.getDescriptor();
+                    int depth = graph.depthOf(typeNames, key);
+                    if (depth >= 0) {
+                        graph.reach(classLoader, typeName, key, depth);
+                        selected.add(key);
+                        reachedMethods.add(typeName + "#" + key);
+                    }
+                }
+            }
+            graph.transformed(typeName);
+            if (graph.generation() != generation) {
+                graphChanged = true;
+            }
+        }
+        return new ElementMatcher.Junction.AbstractBase<MethodDescription>() {
+            @Override
+            public boolean matches(MethodDescription method) {
+                return selected.contains(method.getInternalName() + method.getDescriptor());
+            }
+        };
+    }
+
+    /**
+     * Entry points found and methods selected below them so far, and classes
+     * retransformed because they were woven before an entry point reached them.
+     */
+    public String describe() {
+        return entryMethods.size() + " entry points, " + reachedMethods.size() + " methods within "
+                + CALL_DEPTH + " calls below them, " + caughtUpClasses.sum() + " classes retransformed once reached";
+    }
+
+    /**
+     * Starts the thread that retransforms classes woven before an entry point reached
+     * them, every entrypoint.catchup.interval.ms while the call graphs grow.
+     */
+    public static synchronized void start(Instrumentation inst, Supplier<InstallPlan> plans) {
+        if (!ENABLED || started || CATCHUP_INTERVAL_MS <= 0) {
+            return;
+        }
+        if (!inst.isRetransformClassesSupported()) {
+            System.err.println("[CustomAgent] Entry points: retransformation is not supported, "
+                    + "classes loaded before their entry points stay without advice");
+            return;
+        }
+        started = true;
+        Thread catchUpThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(CATCHUP_INTERVAL_MS);
+                    if (graphChanged) {
+                        graphChanged = false;
+                        EntryPoints entryPoints = plans.get().getEntryPoints();
+                        if (entryPoints != null) {
+                            entryPoints.catchUp(inst);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Throwable t) {
+                    System.err.println("[CustomAgent] Entry point catch-up failed: " + t.getMessage());
+                }
+            }
+        }, "custom-agent-entrypoints");
+        catchUpThread.setDaemon(true);
+        catchUpThread.start();
+        System.err.println("[CustomAgent] Entry points: " + ANNOTATIONS + " " + TYPES
+                + ", " + CALL_DEPTH + " calls deep");
+    }
+
+    private void catchUp(Instrumentation inst) {
+        List<Class<?>> stale = new ArrayList<>();
+        for (Class<?> loaded : inst.getAllLoadedClasses()) {
+            ClassLoader classLoader = loaded.getClassLoader();
+            if (classLoader == null || loaded.isArray() || !typeMatcher.matches(loaded.getName())) {
+                continue;
+            }
+            CallGraph graph = classLoaderMatcher.existingCallGraph(classLoader);
+            if (graph != null && graph.isStale(loaded.getName(), hierarchyOf(loaded))
+                    && inst.isModifiableClass(loaded)) {
+                stale.add(loaded);
+            }
+        }
+        for (Class<?> type : stale) {
+            try {
+                inst.retransformClasses(type);
+                caughtUpClasses.increment();
+            } catch (Throwable t) {
+                System.err.println("[CustomAgent] Entry points: could not retransform " + type.getName() + ": " + t);
+            }
+        }
+    }
+
+    // The type and its supertypes in the instrumented packages, which calls can name
+    private Set<String> hierarchyOf(TypeDescription typeDescription) {
+        Set<String> names = new LinkedHashSet<>();
+        addHierarchy(typeDescription, names);
+        return names;
+    }
+
+    private void addHierarchy(TypeDefinition type, Set<String> names) {
+        if (!names.add(type.asErasure().getName())) {
+            return;
+        }
+        TypeDescription.Generic superClass = type.getSuperClass();
+        if (superClass != null && typeMatcher.matches(superClass.asErasure().getName())) {
+            addHierarchy(superClass, names);
+        }
+        for (TypeDescription.Generic anInterface : type.getInterfaces()) {
+            if (typeMatcher.matches(anInterface.asErasure().getName())) {
+                addHierarchy(anInterface, names);
+            }
+        }
+    }
+
+    private Set<String> hierarchyOf(Class<?> type) {
+        Set<String> names = new LinkedHashSet<>();
+        addHierarchy(type, names);
+        return names;
+    }
+
+    private void addHierarchy(Class<?> type, Set<String> names) {
+        if (!names.add(type.getName())) {
+            return;
+        }
+        Class<?> superClass = type.getSuperclass();
+        if (superClass != null && typeMatcher.matches(superClass.getName())) {
+            addHierarchy(superClass, names);
+        }
+        for (Class<?> anInterface : type.getInterfaces()) {
+            if (typeMatcher.matches(anInterface.getName())) {
+                addHierarchy(anInterface, names);
+            }
+        }
+    }
+
+    private static List<String> split(String names) {
+        List<String> result = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                result.add(name.trim());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+package com.tracer.genericagent.instrumentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-method limiter for detailed error spans, one bucket per exception class.
+ * Each bucket allows at most error.capture.max.per.minute detailed spans in any
+ * error.capture.rate.limit.ms window, all at once if they come at once. It keeps the
+ * times of its last max.per.minute grants in a ring, and a grant replaces a time that
+ * has left the window, so acquiring is one CAS with no locks, no maps and no cleanup.
+ * A method has a few fixed bucket slots; exception classes beyond those share an
+ * overflow bucket, which keeps memory bounded during exception storms.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class ErrorRateLimiter {
+
+    private static final int SLOTS = 4;
+
+    private static final int MAX_PER_WINDOW = Math.max(0, SimplifiedGenericMethodAdvice.MAX_ERROR_SPANS_PER_MINUTE);
+    private static final long WINDOW_NANOS = Math.max(1L,
+            SimplifiedGenericMethodAdvice.ERROR_RATE_LIMIT_MS * 1_000_000L);
+
+    // nanoTime can be negative; measure from class load so a fresh bucket (all 0) starts full
+    private static final long ORIGIN_NANOS = System.nanoTime() - WINDOW_NANOS;
+
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(SLOTS);
+    // Created on first use, like the slots: most methods never throw
+    private final AtomicReference<Bucket> overflow = new AtomicReference<>();
+
+    /**
+     * Bucket for this exception class name, claiming a free slot on first use.
+     */
+    public Bucket bucketFor(String exceptionType) {
+        for (int i = 0; i < SLOTS; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket == null) {
+                Bucket created = new Bucket(exceptionType);
+                if (buckets.compareAndSet(i, null, created)) {
+                    return created;
+                }
+                bucket = buckets.get(i);
+            }
+            // Class.getName() returns the same cached String, so identity usually matches
+            if (bucket.exceptionType == exceptionType || bucket.exceptionType.equals(exceptionType)) {
+                return bucket;
+            }
+        }
+        Bucket bucket = overflow.get();
+        if (bucket == null) {
+            overflow.compareAndSet(null, new Bucket(null));
+            bucket = overflow.get();
+        }
+        return bucket;
+    }
+
+    public static final class Bucket {
+
+        final String exceptionType;
+
+        // Times of the last MAX_PER_WINDOW grants, relative to ORIGIN_NANOS; next points at the oldest
+        private final AtomicLongArray grants = new AtomicLongArray(Math.max(1, MAX_PER_WINDOW));
+        private final AtomicLong next = new AtomicLong();
+        // Errors without a detailed span since the last one that got it
+        private final LongAdder suppressed = new LongAdder();
+
+        Bucket(String exceptionType) {
+            this.exceptionType = exceptionType;
+        }
+
+        /**
+         * Takes a grant if fewer than MAX_PER_WINDOW were taken in the last window.
+         * Lock-free and constant time. A grant only overwrites a time that is already
+         * out of the window, so every grant inside a window keeps its slot, and a
+         * window never holds more grants than there are slots.
+         */
+        public boolean tryAcquire() {
+            if (MAX_PER_WINDOW <= 0) {
+                return false;
+            }
+            long now = System.nanoTime() - ORIGIN_NANOS;
+            while (true) {
+                long index = next.get();
+                int slot = (int) (index % MAX_PER_WINDOW);
+                long oldest = grants.get(slot);
+                if (now - oldest < WINDOW_NANOS) {
+                    return false;
+                }
+                if (grants.compareAndSet(slot, oldest, now)) {
+                    next.compareAndSet(index, index + 1);
+                    suppressed.reset();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Counts an error that did not get a detailed span and returns how many have not
+         * had one since the last that did.
+         */
+        public long recordSuppressed() {
+            suppressed.increment();
+            return suppressed.sum();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded exception capture for detailed error spans. An exception is fingerprinted
+ * from its type and its top error.capture.max.frames frames; the rendered,
+ * already-truncated frame lines are cached per fingerprint, so a repeated exception
+ * costs a hash of a few frames and a map lookup instead of a full printStackTrace.
+ * The exception is recorded as an "exception" event whose stack trace is bounded,
+ * instead of Span.recordException, which renders the whole trace.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class ExceptionCapture {
+
+    public static final int MAX_FRAMES =
+            ConfigReader.getIntProperty("error.capture.max.frames", 2);
+    public static final int CACHE_SIZE =
+            ConfigReader.getIntProperty("error.capture.cache.size", 1024);
+
+    public static final AttributeKey<String> EXCEPTION_TYPE = AttributeKey.stringKey("exception.type");
+    public static final AttributeKey<String> EXCEPTION_MESSAGE = AttributeKey.stringKey("exception.message");
+    public static final AttributeKey<String> EXCEPTION_STACKTRACE = AttributeKey.stringKey("exception.stacktrace");
+    public static final AttributeKey<String> ERROR_FINGERPRINT = AttributeKey.stringKey("error.fingerprint");
+
+    private static final ConcurrentHashMap<Long, String> FRAMES_BY_FINGERPRINT = new ConcurrentHashMap<>();
+
+    private ExceptionCapture() {}
+
+    /**
+     * Fingerprint of the exception type and its top frames. Line numbers are included,
+     * so the same exception thrown from two places gets two fingerprints.
+     */
+    public static long fingerprint(Throwable thrown, StackTraceElement[] frames) {
+        long hash = thrown.getClass().getName().hashCode();
+        int limit = Math.min(MAX_FRAMES, frames.length);
+        for (int i = 0; i < limit; i++) {
+            StackTraceElement frame = frames[i];
+            hash = hash * 0x9E3779B97F4A7C15L + frame.getClassName().hashCode();
+            hash = hash * 0x9E3779B97F4A7C15L + frame.getMethodName().hashCode();
+            hash = hash * 0x9E3779B97F4A7C15L + frame.getLineNumber();
+        }
+        return hash;
+    }
+
+    /**
+     * Header line plus the top frames, in printStackTrace format, at most MAX_STACK_LENGTH chars.
+     */
+    public static String stackString(Throwable thrown) {
+        StackTraceElement[] frames = thrown.getStackTrace();
+        return stackString(thrown, frames, fingerprint(thrown, frames));
+    }
+
+    /**
+     * Records a bounded "exception" event and the error.fingerprint attribute on the span,
+     * and returns the bounded stack string.
+     */
+    public static String recordException(Span span, Throwable thrown, String errorMessage) {
+        StackTraceElement[] frames = thrown.getStackTrace();
+        long fingerprint = fingerprint(thrown, frames);
+        String stack = stackString(thrown, frames, fingerprint);
+
+        span.addEvent("exception", Attributes.of(
+                EXCEPTION_TYPE, thrown.getClass().getName(),
+                EXCEPTION_MESSAGE, truncate(errorMessage),
+                EXCEPTION_STACKTRACE, stack));
+        span.setAttribute(ERROR_FINGERPRINT, Long.toHexString(fingerprint));
+        return stack;
+    }
+
+    private static String stackString(Throwable thrown, StackTraceElement[] frames, long fingerprint) {
+        String cachedFrames = FRAMES_BY_FINGERPRINT.get(fingerprint);
+        if (cachedFrames == null) {
+            cachedFrames = renderFrames(frames);
+            // Bounded: start over rather than grow without limit during an exception storm
+            if (FRAMES_BY_FINGERPRINT.size() >= CACHE_SIZE) {
+                FRAMES_BY_FINGERPRINT.clear();
+            }
+            FRAMES_BY_FINGERPRINT.put(fingerprint, cachedFrames);
+        }
+
+        String message = thrown.getMessage();
+        String header = message == null ? thrown.getClass().getName() : thrown.getClass().getName() + ": " + message;
+        return truncate(header + cachedFrames);
+    }
+
+    private static String renderFrames(StackTraceElement[] frames) {
+        StringBuilder result = new StringBuilder();
+        int limit = Math.min(MAX_FRAMES, frames.length);
+        for (int i = 0; i < limit && result.length() <= SimplifiedGenericMethodAdvice.MAX_STACK_LENGTH; i++) {
+            result.append("\n\tat ").append(frames[i]);
+        }
+        return result.toString();
+    }
+
+    private static String truncate(String value) {
+        int max = SimplifiedGenericMethodAdvice.MAX_STACK_LENGTH;
+        if (value == null || value.length() <= max) {
+            return value;
+        }
+        return value.substring(0, max) + "... (truncated)";
+    }
+}
@@ -0,0 +1,93 @@
+package com.tracer.genericagent.instrumentation;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+
+import net.bytebuddy.asm.Advice;
+
+/**
+ * Advice that hands the span from enter to exit through advice-local variables
+ * instead of the per-thread span stack. The span, scope and start time live in
+ * the instrumented method's own frame, so there is no ThreadLocal lookup, no
+ * stack frame to push or pop, and no depth limit: enter and exit are paired by
+ * construction, even when the method throws. Recursive calls are found through a
+ * RecursionFrame carried in the context, and folded into the outermost call's span.
+ * Selected with advice.mode=handoff; span creation and completion are shared
+ * with SimplifiedGenericMethodAdvice.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public class HandoffMethodAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(
+            @MethodRegistry.Id int methodId,
+            @Advice.Local("span") Span span,
+            @Advice.Local("scope") Scope scope,
+            @Advice.Local("startNanos") long startNanos,
+            @Advice.Local("frame") RecursionFrame frame) {
+
+        // Switched off by the governor: leave span null so onExit does nothing
+        if (!MethodRegistry.get(methodId).enabled) {
+            return;
+        }
+
+        try {
+            Context context = Context.current();
+            if (SimplifiedGenericMethodAdvice.RECURSION_FOLDING_ENABLED) {
+                // A span-less call with a frame is a recursive call folded into that frame
+                frame = RecursionFrame.find(context, methodId);
+                if (frame != null) {
+                    frame.enterRecursion();
+                    return;
+                }
+            }
+
+            span = SimplifiedGenericMethodAdvice.startSpan(methodId, context, 0L);
+            if (span != null) {
+                Context spanContext = context.with(span);
+                if (SimplifiedGenericMethodAdvice.RECURSION_FOLDING_ENABLED && span.isRecording()) {
+                    spanContext = RecursionFrame.push(spanContext, methodId);
+                    frame = RecursionFrame.current(spanContext);
+                }
+                scope = spanContext.makeCurrent();
+                startNanos = span.isRecording() ? System.nanoTime() : 0L;
+            }
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] ERROR in onEnter for method " + MethodRegistry.nameOf(methodId) + ": " + t.getMessage());
+
+            // Leave nothing for onExit to finish
+            SimplifiedGenericMethodAdvice.abandonSpan(span, scope);
+            span = null;
+            scope = null;
+        }
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void onExit(
+            @MethodRegistry.Id int methodId,
+            @Advice.Thrown Throwable thrown,
+            @Advice.Local("span") Span span,
+            @Advice.Local("scope") Scope scope,
+            @Advice.Local("startNanos") long startNanos,
+            @Advice.Local("frame") RecursionFrame frame) {
+
+        if (span == null) {
+            if (frame != null) {
+                frame.exitRecursion();
+            }
+            return;
+        }
+
+        try {
+            if (frame != null && frame.calls() > 0) {
+                span.setAttribute(SimplifiedGenericMethodAdvice.RECURSION_DEPTH, frame.depth());
+                span.setAttribute(SimplifiedGenericMethodAdvice.RECURSION_CALLS, frame.calls());
+            }
+            SimplifiedGenericMethodAdvice.endSpan(methodId, span, scope, startNanos, thrown);
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Critical error in onExit for method " + MethodRegistry.nameOf(methodId) + ": " + t.getMessage());
+            SimplifiedGenericMethodAdvice.abandonSpan(span, scope);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Everything the advisor needs to transform a class, built once from the configuration:
+ * the type matcher, the class loader aware matching built on it, the method matcher with
+ * its safety filters, the entry points when configured, and the advice.
+ * The plan is immutable and shared by every transform on every class loader, so a
+ * transform no longer composes its own matcher graph.
+ *
+ * The plan also counts the transforms it serves. Once install.report.delay.ms has passed
+ * (<= 0 disables it) it prints a startup report with the transform time and the matcher
+ * construction the per-class rebuild would have cost.
+ */
+public final class InstallPlan {
+
+    public static final long REPORT_DELAY_MS =
+            ConfigReader.getLongProperty("install.report.delay.ms", 60000);
+
+    private final List<String> packagePrefixes;
+    private final List<String> packageExcludes;
+    private final String adviceMode;
+    private final ProfileSelection selection;
+    private final Advice advice;
+    private final List<String> includeMethodPatterns;
+    private final List<String> excludeMethodPatterns;
+    private final PackageTypeMatcher typeMatcher;
+    private final ClassLoaderMatcher classLoaderMatcher;
+    private final EntryPoints entryPoints;
+    private final ElementMatcher.Junction<MethodDescription> methodMatcher;
+    private final boolean retransform;
+
+    // What building the method matcher costs, measured on a second, discarded build
+    private final long matcherBuildNanos;
+    private final long matcherBuildBytes;
+
+    private final AtomicLong transformedTypes = new AtomicLong();
+    private final AtomicLong transformNanos = new AtomicLong();
+
+    private InstallPlan(List<String> packagePrefixes,
+                        List<String> packageExcludes,
+                        List<String> includeMethodPatterns,
+                        List<String> excludeMethodPatterns,
+                        String adviceMode,
+                        ProfileSelection selection) {
+        this.packagePrefixes = Collections.unmodifiableList(new ArrayList<>(packagePrefixes));
+        this.packageExcludes = Collections.unmodifiableList(new ArrayList<>(packageExcludes));
+        this.includeMethodPatterns = copyOf(includeMethodPatterns);
+        this.excludeMethodPatterns = copyOf(excludeMethodPatterns);
+        this.adviceMode = adviceMode;
+        this.selection = selection;
+        this.advice = EnhancedGenericMethodAdvisor.buildAdvice(adviceMode);
+        this.typeMatcher = EnhancedGenericMethodAdvisor.buildTypeMatcher(this.packagePrefixes, this.packageExcludes);
+        this.classLoaderMatcher = new ClassLoaderMatcher(typeMatcher, selection);
+        this.entryPoints = EntryPoints.ENABLED ? new EntryPoints(typeMatcher, classLoaderMatcher) : null;
+        this.methodMatcher = buildMethodMatcher(includeMethodPatterns, excludeMethodPatterns);
+        // Runtime changes through AgentControl, installing after a profile was recorded, and
+        // weaving classes again once an entry point reaches them rely on the same retransformable weaving
+        this.retransform = MethodGovernor.RETRANSFORM_ENABLED || AgentControl.ENABLED
+                || ProfileSelection.ENABLED || EntryPoints.ENABLED;
+
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        buildMethodMatcher(includeMethodPatterns, excludeMethodPatterns);
+        this.matcherBuildNanos = System.nanoTime() - start;
+        long bytesAfter = allocatedBytes();
+        this.matcherBuildBytes = bytesBefore < 0 || bytesAfter < 0 ? -1 : bytesAfter - bytesBefore;
+    }
+
+    /**
+     * Builds the plan for the given packages and method patterns; package excludes and
+     * the advice mode are read from the configuration.
+     */
+    public static InstallPlan create(List<String> packagePrefixes,
+                                     List<String> packageExcludes,
+                                     List<String> includeMethodPatterns,
+                                     List<String> excludeMethodPatterns) {
+        return new InstallPlan(packagePrefixes, packageExcludes, includeMethodPatterns,
+                excludeMethodPatterns, ConfigReader.getAdviceMode(), null);
+    }
+
+    /**
+     * A plan with other packages and method patterns, the same excludes and advice mode.
+     * Rules given explicitly replace a profile selection.
+     */
+    public InstallPlan withRules(List<String> packagePrefixes,
+                                 List<String> includeMethodPatterns,
+                                 List<String> excludeMethodPatterns) {
+        return new InstallPlan(packagePrefixes, packageExcludes, includeMethodPatterns,
+                excludeMethodPatterns, adviceMode, null);
+    }
+
+    /**
+     * The same plan restricted to the methods of the profile selection.
+     */
+    public InstallPlan withSelection(ProfileSelection selection) {
+        return new InstallPlan(packagePrefixes, packageExcludes, includeMethodPatterns,
+                excludeMethodPatterns, adviceMode, selection);
+    }
+
+    public List<String> getPackagePrefixes() {
+        return packagePrefixes;
+    }
+
+    public List<String> getPackageExcludes() {
+        return packageExcludes;
+    }
+
+    public List<String> getIncludeMethodPatterns() {
+        return includeMethodPatterns;
+    }
+
+    public List<String> getExcludeMethodPatterns() {
+        return excludeMethodPatterns;
+    }
+
+    public String getAdviceMode() {
+        return adviceMode;
+    }
+
+    /**
+     * The profile selection the plan is restricted to, or null.
+     */
+    public ProfileSelection getSelection() {
+        return selection;
+    }
+
+    public Advice getAdvice() {
+        return advice;
+    }
+
+    public PackageTypeMatcher getTypeMatcher() {
+        return typeMatcher;
+    }
+
+    public ClassLoaderMatcher getClassLoaderMatcher() {
+        return classLoaderMatcher;
+    }
+
+    /**
+     * The entry points the plan is restricted to, or null.
+     */
+    public EntryPoints getEntryPoints() {
+        return entryPoints;
+    }
+
+    public ElementMatcher.Junction<MethodDescription> getMethodMatcher() {
+        return methodMatcher;
+    }
+
+    public boolean isRetransform() {
+        return retransform;
+    }
+
+    /**
+     * Methods of the given type to instrument, with its trivial methods found from the
+     * class file in the loader's resources (cached per class loader and class). With
+     * entry points, only those and the methods they reach.
+     */
+    public ElementMatcher.Junction<MethodDescription> methodMatcherFor(TypeDescription typeDescription,
+                                                                     ClassLoader classLoader) {
+        String className = typeDescription.getName();
+        ElementMatcher.Junction<MethodDescription> matcher =
+                methodMatcherFor(className, classLoaderMatcher.trivialMethods(className, classLoader));
+        if (entryPoints != null) {
+            matcher = matcher.and(entryPoints.methodsOf(typeDescription, classLoader));
+        }
+        return matcher;
+    }
+
+    /**
+     * Methods of the given class to instrument, without the given trivial methods (name
+     * plus descriptor). With a profile selection only the selected ones. With
+     * retransformation, methods the governor has switched off are left out so they lose
+     * their advice.
+     */
+    public ElementMatcher.Junction<MethodDescription> methodMatcherFor(String className, Set<String> trivialMethods) {
+        ElementMatcher.Junction<MethodDescription> matcher = methodMatcher;
+        if (!trivialMethods.isEmpty()) {
+            matcher = matcher.and(method -> !trivialMethods.contains(method.getInternalName() + method.getDescriptor()));
+        }
+        if (selection != null) {
+            matcher = matcher.and(selection.matcherFor(className));
+        }
+        if (retransform) {
+            matcher = matcher.and(not(MethodGovernor.isDisabledIn(className)));
+        }
+        return matcher;
+    }
+
+    /**
+     * Counts one transform that started at the given System.nanoTime().
+     */
+    public void recordTransform(long startNanos) {
+        transformedTypes.incrementAndGet();
+        transformNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Everything that decides what the plan weaves into a class, for keying cached
+     * class bytes: a change to any of it must not reuse bytes woven under another plan.
+     */
+    public String fingerprint() {
+        return "packages=" + packagePrefixes
+                + "|excludes=" + packageExcludes
+                + "|includeMethods=" + includeMethodPatterns
+                + "|excludeMethods=" + excludeMethodPatterns
+                + "|adviceMode=" + adviceMode
+                + "|retransform=" + retransform
+                + "|trivialDetection=" + (TrivialMethodDetector.ENABLED ? TrivialMethodDetector.MIN_INSTRUCTIONS : "off")
+                + (selection != null ? "|selection=" + selection.fingerprint() : "")
+                + (entryPoints != null ? "|entryPoints=" + EntryPoints.ANNOTATIONS + EntryPoints.TYPES
+                        + "/" + EntryPoints.CALL_DEPTH : "");
+    }
+
+    /**
+     * Schedules the startup report on a daemon thread; the cache and the telemetry, where
+     * not null, add their own sections.
+     */
+    public void scheduleReport(TransformCache cache, TransformTelemetry telemetry) {
+        if (REPORT_DELAY_MS <= 0) {
+            return;
+        }
+        Thread reportThread = new Thread(() -> {
+            try {
+                Thread.sleep(REPORT_DELAY_MS);
+                report();
+                if (cache != null) {
+                    cache.report();
+                }
+                if (telemetry != null) {
+                    telemetry.report();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "custom-agent-install-report");
+        reportThread.setDaemon(true);
+        reportThread.start();
+    }
+
+    public void report() {
+        long types = transformedTypes.get();
+        System.out.println("[EnhancedAdvisor] Install report: " + types + " types matched, transform() took "
+                + transformNanos.get() / 1_000_000 + " ms");
+        System.out.println("[EnhancedAdvisor] Install report: method matcher built once ("
+                + matcherBuildNanos / 1_000 + " us"
+                + (matcherBuildBytes >= 0 ? ", " + matcherBuildBytes + " bytes" : "")
+                + " per build); rebuilding it per type would have cost about "
+                + types * matcherBuildNanos / 1_000_000 + " ms"
+                + (matcherBuildBytes >= 0 ? " and " + types * matcherBuildBytes / 1024 + " KB" : ""));
+        System.out.println("[EnhancedAdvisor] Install report: " + classLoaderMatcher.describe());
+        if (TrivialMethodDetector.ENABLED) {
+            System.out.println("[EnhancedAdvisor] Install report: trivial method detection: " + TrivialMethodDetector.describe());
+        }
+        if (entryPoints != null) {
+            System.out.println("[EnhancedAdvisor] Install report: " + entryPoints.describe());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InstallPlan{packages=" + packagePrefixes + ", adviceMode=" + adviceMode
+                + ", retransform=" + retransform + ", typeMatcher=" + typeMatcher
+                + (selection != null ? ", selection=" + selection : "") + "}";
+    }
+
+    private static List<String> copyOf(List<String> values) {
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(values));
+    }
+
+    private static ElementMatcher.Junction<MethodDescription> buildMethodMatcher(
+            List<String> includeMethodPatterns, List<String> excludeMethodPatterns) {
+        ElementMatcher.Junction<MethodDescription> includeMatcher;
+        if (includeMethodPatterns == null || includeMethodPatterns.isEmpty()) {
+            includeMatcher = any();
+        } else {
+            includeMatcher = none();
+            for (String inc : includeMethodPatterns) {
+                includeMatcher = includeMatcher.or(named(inc));
+            }
+        }
+
+        ElementMatcher.Junction<MethodDescription> excludeMatcher = none();
+        if (excludeMethodPatterns != null && !excludeMethodPatterns.isEmpty()) {
+            for (String exc : excludeMethodPatterns) {
+                excludeMatcher = excludeMatcher.or(nameContains(exc));
+            }
+        }
+
+        // Final method matcher with safety filters
+        ElementMatcher.Junction<MethodDescription> matcher = includeMatcher.and(not(excludeMatcher))
+                .and(isPublic().or(isPrivate()))
+                .and(not(isConstructor()))
+                .and(not(isAbstract()))
+                .and(not(isNative()))
+
+                // Object class standard methods - typically low value
+                .and(not(named("equals").and(takesArguments(1))))
+                .and(not(named("hashCode").and(takesNoArguments())))
+                .and(not(named("toString").and(takesNoArguments())))
+
+                // Serialization hooks
+                .and(not(named("readObject").or(named("writeObject"))))
+                .and(not(named("clone").and(takesNoArguments())));
+
+        // Trivial methods are found from their bytecode instead of their names
+        if (TrivialMethodDetector.ENABLED) {
+            return matcher;
+        }
+
+        return matcher
+                // 1. Standard getters/setters
+                .and(not(nameStartsWith("get").and(takesNoArguments())))
+                .and(not(nameStartsWith("set").and(takesArguments(1))))
+                .and(not(nameStartsWith("is").and(takesNoArguments())))
+
+                // 3. Collection-related basic operations
+                .and(not(named("size").and(takesNoArguments())))
+                .and(not(named("isEmpty").and(takesNoArguments())))
+                .and(not(named("contains").and(takesArguments(1))))
+                .and(not(named("iterator").and(takesNoArguments())))
+                .and(not(named("toArray").and(takesNoArguments().or(takesArguments(1)))))
+
+                // 4. Common functional interface methods
+                .and(not(named("apply").or(named("accept")).or(named("test")).or(named("get"))))
+                .and(not(named("compare").and(takesArguments(2))))
+                .and(not(named("compareTo").and(takesArguments(1))))
+
+                // 5. Conversion methods
+                .and(not(nameStartsWith("to").and(not(nameContains("_")))))
+                .and(not(nameStartsWith("from").and(not(nameContains("_")))))
+
+                // 6. Utility and helper methods
+                .and(not(nameContains("helper").or(nameContains("Helper"))))
+                .and(not(nameContains("util").or(nameContains("Util"))))
+                .and(not(nameContains("internal").or(nameContains("Internal"))));
+    }
+
+    // Bytes allocated by the current thread, or -1 where the JVM doesn't report it
+    private static long allocatedBytes() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        } catch (Throwable ignored) {
+            // Not available on this JVM
+        }
+        return -1;
+    }
+}
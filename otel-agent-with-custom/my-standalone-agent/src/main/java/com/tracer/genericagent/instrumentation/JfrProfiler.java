@@ -0,0 +1,244 @@
+package com.tracer.genericagent.instrumentation;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks methods by wall-clock time from JFR stack samples (jdk.ExecutionSample, and
+ * jdk.NativeMethodSample for threads blocked in native code such as socket reads), for
+ * ProfileSelection. Only this class refers to jdk.jfr, so the agent still loads on a
+ * JVM without it.
+ *
+ * Sampling doesn't count calls, so they are estimated from each thread's consecutive
+ * samples: a frame continues the previous sample's call when the same methods called
+ * each other from the same call sites above it, and is a new call otherwise. Every
+ * method on a stack is credited the time since the thread's previous sample if that is
+ * at most ten sample periods; after a longer gap the thread was likely idle, so every
+ * frame is a new call and is credited one period, as for a thread's first sample.
+ * A method called over and over from the same call site looks like one long call, so the
+ * estimate leans towards selecting too much; the governor switches off what turns out to
+ * be hot. Stacks deeper than the recording's stackdepth lose their outer frames and all
+ * of their frames count as new calls; record with
+ * -XX:FlightRecorderOptions:stackdepth=256 or more for deep application server stacks.
+ * Recordings of an instrumented JVM list woven methods under their rebased names
+ * (name$original$suffix), which are mapped back to the method names.
+ */
+public final class JfrProfiler {
+
+    // Longest gap between two samples of a thread, in sample periods, that is still credited
+    private static final int MAX_CONTINUATION_PERIODS = 10;
+
+    private static final String REBASED_METHOD = "$original$";
+
+    private JfrProfiler() {}
+
+    /**
+     * Records stack samples of every thread for the given time and returns the .jfr file.
+     */
+    public static Path record(long durationMs, long periodMs) throws IOException, InterruptedException {
+        Path file = Files.createTempFile("custom-agent-profile", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.setName("custom-agent-profile");
+            recording.enable("jdk.ExecutionSample").withPeriod(Duration.ofMillis(periodMs)).withStackTrace();
+            recording.enable("jdk.NativeMethodSample").withPeriod(Duration.ofMillis(periodMs)).withStackTrace();
+            recording.start();
+            Thread.sleep(durationMs);
+            recording.stop();
+            recording.dump(file);
+        }
+        return file;
+    }
+
+    /**
+     * Ranks the methods of the type matcher's classes in the recording by wall-clock time
+     * and keeps the top ones whose estimated mean call takes at least minCallMs.
+     */
+    public static ProfileSelection rank(Path jfrFile,
+                                        List<String> packagePrefixes,
+                                        PackageTypeMatcher typeMatcher,
+                                        long periodMs,
+                                        int topMethods,
+                                        long minCallMs) throws IOException {
+        MethodTable table = new MethodTable();
+        List<Sample> samples = new ArrayList<>();
+        try (RecordingFile recording = new RecordingFile(jfrFile)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String type = event.getEventType().getName();
+                if (!"jdk.ExecutionSample".equals(type) && !"jdk.NativeMethodSample".equals(type)) {
+                    continue;
+                }
+                Sample sample = Sample.of(event, table);
+                if (sample != null) {
+                    samples.add(sample);
+                }
+            }
+        }
+        samples.sort(Comparator.comparingLong((Sample s) -> s.thread).thenComparingLong(s -> s.nanos));
+
+        long periodNanos = periodMs * 1_000_000L;
+        long maxGapNanos = periodNanos * MAX_CONTINUATION_PERIODS;
+        long[] wallNanos = new long[table.size()];
+        long[] calls = new long[table.size()];
+        long[] sampleCounts = new long[table.size()];
+        boolean[] seen = new boolean[table.size()];
+
+        Sample previous = null;
+        for (Sample sample : samples) {
+            if (previous != null && previous.thread != sample.thread) {
+                previous = null;
+            }
+            long gap = previous == null ? Long.MAX_VALUE : sample.nanos - previous.nanos;
+            // After a longer gap the thread was likely idle: credit one period, as for its first sample
+            int continuing = gap > maxGapNanos ? 0 : sample.continuing(previous);
+            long credit = gap > maxGapNanos ? periodNanos : gap;
+
+            // Recursive methods count once per sample, at their outermost frame
+            for (int i = 0; i < sample.methods.length; i++) {
+                int method = sample.methods[i];
+                if (seen[method]) {
+                    continue;
+                }
+                seen[method] = true;
+                sampleCounts[method]++;
+                wallNanos[method] += credit;
+                if (i >= continuing) {
+                    calls[method]++;
+                }
+            }
+            for (int method : sample.methods) {
+                seen[method] = false;
+            }
+            previous = sample;
+        }
+
+        List<ProfileSelection.Entry> candidates = new ArrayList<>();
+        for (int method = 0; method < table.size(); method++) {
+            String[] name = table.name(method);
+            if (calls[method] == 0 || !typeMatcher.matches(name[0])) {
+                continue;
+            }
+            ProfileSelection.Entry entry = new ProfileSelection.Entry(name[0], name[1], name[2],
+                    wallNanos[method] / 1_000_000, calls[method], sampleCounts[method]);
+            if (entry.getMeanCallMs() >= minCallMs) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(ProfileSelection.Entry::getWallMs).reversed()
+                .thenComparingLong(ProfileSelection.Entry::getEstimatedCalls));
+        return new ProfileSelection(packagePrefixes,
+                candidates.subList(0, Math.min(topMethods, candidates.size())));
+    }
+
+    /**
+     * One stack sample, outermost frame first, with methods as MethodTable indexes.
+     */
+    private static final class Sample {
+        private final long thread;
+        private final long nanos;
+        private final int[] methods;
+        private final int[] callSites;
+        private final boolean truncated;
+
+        private Sample(long thread, long nanos, int[] methods, int[] callSites, boolean truncated) {
+            this.thread = thread;
+            this.nanos = nanos;
+            this.methods = methods;
+            this.callSites = callSites;
+            this.truncated = truncated;
+        }
+
+        static Sample of(RecordedEvent event, MethodTable table) {
+            RecordedStackTrace stackTrace = event.getStackTrace();
+            RecordedThread thread = event.getThread("sampledThread");
+            if (stackTrace == null || thread == null) {
+                return null;
+            }
+            List<RecordedFrame> frames = new ArrayList<>();
+            for (RecordedFrame frame : stackTrace.getFrames()) {
+                if (frame.isJavaFrame() && frame.getMethod() != null) {
+                    frames.add(frame);
+                }
+            }
+            int depth = frames.size();
+            int[] methods = new int[depth];
+            int[] callSites = new int[depth];
+            for (int i = 0; i < depth; i++) {
+                // JFR lists the innermost frame first
+                RecordedFrame frame = frames.get(depth - 1 - i);
+                methods[i] = table.indexOf(frame.getMethod());
+                callSites[i] = frame.getBytecodeIndex();
+            }
+            Instant time = event.getStartTime();
+            return new Sample(thread.getJavaThreadId(), time.getEpochSecond() * 1_000_000_000L + time.getNano(),
+                    methods, callSites, stackTrace.isTruncated());
+        }
+
+        // How many outer frames carry on the calls of the previous sample of the thread
+        int continuing(Sample previous) {
+            if (previous == null || truncated || previous.truncated) {
+                return 0;
+            }
+            int common = Math.min(methods.length, previous.methods.length);
+            for (int i = 0; i < common; i++) {
+                if (methods[i] != previous.methods[i]) {
+                    return i;
+                }
+                if (callSites[i] != previous.callSites[i]) {
+                    // The same call, now calling from elsewhere: what it calls is new
+                    return i + 1;
+                }
+            }
+            return common;
+        }
+    }
+
+    /**
+     * Interns methods as (type, name, descriptor) and hands out dense indexes.
+     */
+    private static final class MethodTable {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String[]> names = new ArrayList<>();
+
+        int indexOf(RecordedMethod method) {
+            String type = method.getType().getName();
+            String name = method.getName();
+            int rebased = name.indexOf(REBASED_METHOD);
+            if (rebased > 0) {
+                name = name.substring(0, rebased);
+            }
+            String key = type + "#" + name + method.getDescriptor();
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = names.size();
+                indexes.put(key, index);
+                names.add(new String[]{type, name, method.getDescriptor()});
+            }
+            return index;
+        }
+
+        String[] name(int index) {
+            return names.get(index);
+        }
+
+        int size() {
+            return names.size();
+        }
+    }
+}
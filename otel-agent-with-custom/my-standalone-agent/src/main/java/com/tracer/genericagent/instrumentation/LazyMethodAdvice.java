@@ -0,0 +1,179 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+
+import net.bytebuddy.asm.Advice;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Advice that only creates spans for calls that are slow or fail. Entry records a
+ * primitive frame (method ID, System.nanoTime, current context); exit turns the frame
+ * into a real span, back-dated to the entry time, only if the call took at least
+ * span.min.duration.ms or threw. A span needs its ancestors, so materializing a frame
+ * also materializes every enclosing frame that has no span yet - those are at least
+ * as slow, and are ended on their own exit. Calls that stay below the threshold are
+ * folded into the folded.calls / folded.duration_ms attributes of their parent.
+ * Recursive calls are not pushed at all and only count towards the method's outermost
+ * frame (recursion.calls / recursion.depth).
+ *
+ * Nothing is made current while a call runs, so spans started by other
+ * instrumentation inside a traced method parent to the enclosing context instead.
+ * Selected with advice.mode=lazy.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public class LazyMethodAdvice {
+
+    public static final ThreadLocal<LazySpanStack> LAZY_FRAMES = ThreadLocal.withInitial(LazySpanStack::new);
+
+    public static final long MIN_SPAN_DURATION_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(ConfigReader.getMinSpanDurationMs());
+
+    public static final AttributeKey<Long> FOLDED_CALLS = AttributeKey.longKey("folded.calls");
+    public static final AttributeKey<Long> FOLDED_DURATION_MS = AttributeKey.longKey("folded.duration_ms");
+
+    static {
+        System.err.println("[CustomAgent] LazyMethodAdvice loaded - min span duration: " +
+                ConfigReader.getMinSpanDurationMs() + " ms");
+    }
+
+    /**
+     * Kept to the enabled check and a call, like SimplifiedGenericMethodAdvice.onEnter,
+     * so that instrumented methods stay inlinable. Returns NOT_TRACED when the governor
+     * has switched the method off, else what enter() returns.
+     */
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static int onEnter(@MethodRegistry.Id int methodId) {
+        return MethodRegistry.get(methodId).enabled ? enter(methodId) : SimplifiedGenericMethodAdvice.NOT_TRACED;
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void onExit(
+            @MethodRegistry.Id int methodId,
+            @Advice.Enter int frame,
+            @Advice.Thrown Throwable thrown) {
+        if (frame != SimplifiedGenericMethodAdvice.NOT_TRACED) {
+            exit(methodId, frame, thrown);
+        }
+    }
+
+    /**
+     * Returns FOLDED for a recursive call, and ON_STACK when a frame was pushed
+     * (constants of SimplifiedGenericMethodAdvice).
+     */
+    public static int enter(int methodId) {
+        LazySpanStack frames = LAZY_FRAMES.get();
+        if (SimplifiedGenericMethodAdvice.RECURSION_FOLDING_ENABLED) {
+            int outer = frames.indexOf(methodId);
+            if (outer >= 0) {
+                frames.enterRecursion(outer);
+                return SimplifiedGenericMethodAdvice.FOLDED;
+            }
+        }
+        MethodGovernor.recordCall(MethodRegistry.get(methodId));
+        frames.push(methodId, System.nanoTime(), Context.current());
+        return SimplifiedGenericMethodAdvice.ON_STACK;
+    }
+
+    public static void exit(int methodId, int frame, Throwable thrown) {
+        if (frame == SimplifiedGenericMethodAdvice.FOLDED) {
+            LazySpanStack frames = LAZY_FRAMES.get();
+            int outer = frames.indexOf(methodId);
+            if (outer >= 0) {
+                frames.exitRecursion(outer);
+            }
+            return;
+        }
+        if (frame != SimplifiedGenericMethodAdvice.ON_STACK) {
+            return;
+        }
+
+        LazySpanStack frames = LAZY_FRAMES.get();
+        if (frames.isEmpty()) {
+            return;
+        }
+
+        try {
+            completeTopFrame(frames, thrown);
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Critical error in lazy onExit for method " +
+                    MethodRegistry.nameOf(frames.methodId(frames.size() - 1)) + ": " + t.getMessage());
+        } finally {
+            frames.pop();
+        }
+    }
+
+    /**
+     * Either ends the top frame's span or folds the call into its parent frame.
+     */
+    public static void completeTopFrame(LazySpanStack frames, Throwable thrown) {
+        int top = frames.size() - 1;
+        long endNanos = System.nanoTime();
+        long durationNanos = endNanos - frames.startNanos(top);
+        MethodGovernor.recordDuration(MethodRegistry.get(frames.methodId(top)), durationNanos);
+
+        Span span = frames.span(top);
+        if (span == null && (thrown != null || durationNanos >= MIN_SPAN_DURATION_NANOS)) {
+            span = materialize(frames, top);
+        }
+
+        if (span == null) {
+            // Fast call (or dropped by sampling): only counts towards the parent
+            if (top > 0) {
+                frames.fold(top - 1, 1L + frames.foldedCalls(top), durationNanos);
+            }
+            return;
+        }
+
+        try {
+            if (span.isRecording()) {
+                long folded = frames.foldedCalls(top);
+                if (folded > 0) {
+                    span.setAttribute(FOLDED_CALLS, folded);
+                    span.setAttribute(FOLDED_DURATION_MS, TimeUnit.NANOSECONDS.toMillis(frames.foldedNanos(top)));
+                }
+                if (frames.recursionCalls(top) > 0) {
+                    span.setAttribute(SimplifiedGenericMethodAdvice.RECURSION_DEPTH, frames.recursionDepth(top));
+                    span.setAttribute(SimplifiedGenericMethodAdvice.RECURSION_CALLS, frames.recursionCalls(top));
+                }
+                SimplifiedGenericMethodAdvice.recordOutcome(
+                        frames.methodId(top), span, TimeUnit.NANOSECONDS.toMillis(durationNanos), thrown);
+                if (TraceBudget.ENABLED) {
+                    TraceBudget.close(span);
+                }
+            }
+        } finally {
+            span.end(SimplifiedGenericMethodAdvice.EPOCH_OFFSET_NANOS + endNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Starts spans for the frame at index and every enclosing frame without one,
+     * outermost first, each back-dated to its own entry time.
+     */
+    public static Span materialize(LazySpanStack frames, int index) {
+        int first = index;
+        while (first > 0 && frames.span(first - 1) == null) {
+            first--;
+        }
+
+        Span span = null;
+        for (int i = first; i <= index; i++) {
+            Context parentContext = frames.parentContext(i);
+
+            // Parent to the enclosing frame's span unless something else changed the context in between
+            if (i > 0 && frames.span(i - 1) != null && parentContext == frames.parentContext(i - 1)) {
+                parentContext = parentContext.with(frames.span(i - 1));
+            }
+
+            // The call was counted when its frame was pushed
+            span = SimplifiedGenericMethodAdvice.startSpanForCountedCall(
+                    frames.methodId(i), parentContext, SimplifiedGenericMethodAdvice.EPOCH_OFFSET_NANOS + frames.startNanos(i));
+            frames.setSpan(i, span);
+        }
+        return span;
+    }
+}
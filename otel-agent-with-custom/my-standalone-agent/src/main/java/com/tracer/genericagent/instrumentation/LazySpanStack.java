@@ -0,0 +1,143 @@
+package com.tracer.genericagent.instrumentation;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread frame buffer for the lazy advice. A frame is just the method ID, the
+ * entry timestamp and the context the call started in; a span is attached only
+ * once the frame (or one of its descendants) turns out to be worth recording.
+ * Fast calls that never get a span are folded into counters on their parent frame.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class LazySpanStack {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] methodIds = new int[INITIAL_CAPACITY];
+    private long[] startNanos = new long[INITIAL_CAPACITY];
+    private Context[] parentContexts = new Context[INITIAL_CAPACITY];
+    private Span[] spans = new Span[INITIAL_CAPACITY];
+    private long[] foldedCalls = new long[INITIAL_CAPACITY];
+    private long[] foldedNanos = new long[INITIAL_CAPACITY];
+    // Recursive calls folded into a frame: total, currently active, and deepest nesting seen
+    private int[] recursionCalls = new int[INITIAL_CAPACITY];
+    private int[] recursionActive = new int[INITIAL_CAPACITY];
+    private int[] recursionMaxActive = new int[INITIAL_CAPACITY];
+    private int size;
+
+    public void push(int methodId, long entryNanos, Context parentContext) {
+        if (size == methodIds.length) {
+            int capacity = size * 2;
+            methodIds = Arrays.copyOf(methodIds, capacity);
+            startNanos = Arrays.copyOf(startNanos, capacity);
+            parentContexts = Arrays.copyOf(parentContexts, capacity);
+            spans = Arrays.copyOf(spans, capacity);
+            foldedCalls = Arrays.copyOf(foldedCalls, capacity);
+            foldedNanos = Arrays.copyOf(foldedNanos, capacity);
+            recursionCalls = Arrays.copyOf(recursionCalls, capacity);
+            recursionActive = Arrays.copyOf(recursionActive, capacity);
+            recursionMaxActive = Arrays.copyOf(recursionMaxActive, capacity);
+        }
+        methodIds[size] = methodId;
+        startNanos[size] = entryNanos;
+        parentContexts[size] = parentContext;
+        size++;
+    }
+
+    public void pop() {
+        size--;
+        parentContexts[size] = null;
+        spans[size] = null;
+        foldedCalls[size] = 0L;
+        foldedNanos[size] = 0L;
+        recursionCalls[size] = 0;
+        recursionActive[size] = 0;
+        recursionMaxActive[size] = 0;
+    }
+
+    public int methodId(int index) {
+        return methodIds[index];
+    }
+
+    public long startNanos(int index) {
+        return startNanos[index];
+    }
+
+    public Context parentContext(int index) {
+        return parentContexts[index];
+    }
+
+    public Span span(int index) {
+        return spans[index];
+    }
+
+    public void setSpan(int index, Span span) {
+        spans[index] = span;
+    }
+
+    public long foldedCalls(int index) {
+        return foldedCalls[index];
+    }
+
+    public long foldedNanos(int index) {
+        return foldedNanos[index];
+    }
+
+    /**
+     * Adds a finished, span-less call (and everything already folded into it) to a frame.
+     */
+    public void fold(int index, long calls, long nanos) {
+        foldedCalls[index] += calls;
+        foldedNanos[index] += nanos;
+    }
+
+    /**
+     * Index of the frame of this method on the current path, or -1. Recursive calls are
+     * folded rather than pushed, so this is the outermost call of the method.
+     */
+    public int indexOf(int methodId) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (methodIds[i] == methodId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts a recursive call folded into the frame at index.
+     */
+    public void enterRecursion(int index) {
+        recursionCalls[index]++;
+        int active = ++recursionActive[index];
+        if (active > recursionMaxActive[index]) {
+            recursionMaxActive[index] = active;
+        }
+    }
+
+    public void exitRecursion(int index) {
+        recursionActive[index]--;
+    }
+
+    public int recursionCalls(int index) {
+        return recursionCalls[index];
+    }
+
+    /**
+     * Deepest recursion reached under the frame at index, counting the frame itself.
+     */
+    public int recursionDepth(int index) {
+        return recursionMaxActive[index] + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,73 @@
+package com.tracer.genericagent.instrumentation;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything the advice needs to know about one instrumented method, built once
+ * at transform time so that onEnter/onExit do no string work per call.
+ */
+public final class MethodDescriptor {
+
+    private static final AttributeKey<String> AI_OPERATION_NAME = AttributeKey.stringKey("ai.operation.name");
+    private static final AttributeKey<String> AI_CLOUD_ROLE = AttributeKey.stringKey("ai.cloud.role");
+    private static final AttributeKey<String> SERVICE_NAME = AttributeKey.stringKey("service.name");
+    private static final AttributeKey<String> CODE_NAMESPACE = AttributeKey.stringKey("code.namespace");
+    private static final AttributeKey<String> CODE_FUNCTION = AttributeKey.stringKey("code.function");
+
+    public final int id;
+    public final String className;
+    public final String methodName;
+    public final String descriptor;
+
+    // "#t.#m" - what the advice used to rebuild from @Advice.Origin on every call
+    public final String spanName;
+
+    // Attributes that never change between invocations of this method
+    public final Attributes constantAttributes;
+
+    // Detailed error span budget, per exception class
+    public final ErrorRateLimiter errorLimiter = new ErrorRateLimiter();
+
+    // Per-method tracing switch, cleared by the MethodGovernor for hot, trivial methods
+    public volatile boolean enabled = true;
+
+    // Woven below entry points (EntryPoints): only traced inside a trace, never starts one.
+    // Set while weaving, so classes served from elsewhere (build-time weaving) keep starting traces
+    public volatile boolean belowEntryPoint;
+
+    // Governor counters: every traced call, and the calls whose duration was measured
+    public final LongAdder calls = new LongAdder();
+    public final LongAdder timedCalls = new LongAdder();
+    public final LongAdder timedNanos = new LongAdder();
+
+    // Counter values at the governor's previous evaluation, only touched by the governor thread
+    long lastCalls;
+    long lastTimedCalls;
+    long lastTimedNanos;
+
+    MethodDescriptor(int id, String className, String methodName, String descriptor, String serviceName) {
+        this.id = id;
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+        this.spanName = className + "." + methodName;
+        this.constantAttributes = Attributes.builder()
+                // Essential Azure Application Insights attributes
+                .put(AI_OPERATION_NAME, spanName)
+                .put(AI_CLOUD_ROLE, serviceName)
+                // Essential service identification
+                .put(SERVICE_NAME, serviceName)
+                // Method identification (essential for debugging)
+                .put(CODE_NAMESPACE, className)
+                .put(CODE_FUNCTION, methodName)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return spanName + descriptor + "#" + id;
+    }
+}
@@ -0,0 +1,209 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Switches tracing off for methods that are called very often and finish very quickly,
+ * where the span costs more than the method itself. Every interval the governor reads
+ * the per-method counters; a method called more than governor.max.calls.per.second
+ * times per second with a mean duration under governor.min.mean.duration.us is
+ * disabled through its MethodDescriptor.enabled flag, which the advice checks first.
+ * With governor.retransform.enabled the classes are also retransformed so the advice
+ * is removed from the disabled methods altogether.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class MethodGovernor {
+
+    public static final boolean ENABLED =
+            ConfigReader.getBooleanProperty("governor.enabled", true);
+    public static final long INTERVAL_MS =
+            ConfigReader.getLongProperty("governor.interval.ms", 10000);
+    public static final long MAX_CALLS_PER_SECOND =
+            ConfigReader.getLongProperty("governor.max.calls.per.second", 1000);
+    public static final long MIN_MEAN_DURATION_US =
+            ConfigReader.getLongProperty("governor.min.mean.duration.us", 10);
+    public static final boolean RETRANSFORM_ENABLED =
+            ConfigReader.getBooleanProperty("governor.retransform.enabled", false);
+
+    // Don't judge a method on a handful of timed calls
+    private static final long MIN_TIMED_CALLS = 100;
+
+    private static final AtomicInteger DISABLED_METHODS = new AtomicInteger();
+
+    private static Instrumentation instrumentation;
+    private static boolean started;
+
+    private MethodGovernor() {}
+
+    /**
+     * Starts the governor thread and registers its metric. Only the first call has any effect.
+     */
+    public static synchronized void start(Instrumentation inst) {
+        if (!ENABLED || started) {
+            return;
+        }
+        started = true;
+        instrumentation = inst;
+
+        try {
+            Meter meter = GlobalOpenTelemetry.getMeter("generic-agent-meter");
+            meter.gaugeBuilder("agent.governor.disabled.methods")
+                    .setDescription("Methods whose tracing was switched off by the overhead governor")
+                    .ofLongs()
+                    .buildWithCallback(obs -> obs.record(DISABLED_METHODS.get(), Attributes.empty()));
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Could not register governor metric: " + t.getMessage());
+        }
+
+        Thread governorThread = new Thread(() -> {
+            long last = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(INTERVAL_MS);
+                    long now = System.nanoTime();
+                    evaluate(now - last);
+                    last = now;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Throwable t) {
+                    System.err.println("[CustomAgent] Governor evaluation failed: " + t.getMessage());
+                }
+            }
+        }, "custom-agent-governor");
+        governorThread.setDaemon(true);
+        governorThread.start();
+
+        System.err.println("[CustomAgent] Method governor started - disabling methods above " +
+                MAX_CALLS_PER_SECOND + " calls/s with mean under " + MIN_MEAN_DURATION_US + " us" +
+                (RETRANSFORM_ENABLED ? ", with retransformation" : ""));
+    }
+
+    /**
+     * Counts a traced call. Called on method entry.
+     */
+    public static void recordCall(MethodDescriptor method) {
+        if (ENABLED) {
+            method.calls.increment();
+        }
+    }
+
+    /**
+     * Adds a measured call duration. Called on method exit, only where the duration is known anyway.
+     */
+    public static void recordDuration(MethodDescriptor method, long durationNanos) {
+        if (ENABLED) {
+            method.timedCalls.increment();
+            method.timedNanos.add(durationNanos);
+        }
+    }
+
+    /**
+     * Number of methods switched off so far.
+     */
+    public static int disabledCount() {
+        return DISABLED_METHODS.get();
+    }
+
+    /**
+     * Matches methods of the given class that the governor has switched off, so that
+     * retransformation leaves them without advice.
+     */
+    public static ElementMatcher<MethodDescription> isDisabledIn(String className) {
+        return target -> {
+            MethodDescriptor method = MethodRegistry.find(
+                    className, target.getInternalName(), target.getDescriptor());
+            return method != null && !method.enabled;
+        };
+    }
+
+    /**
+     * One governor pass over every registered method.
+     */
+    static void evaluate(long elapsedNanos) {
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        double elapsedSeconds = elapsedNanos / 1_000_000_000.0;
+        Set<String> classesToRetransform = new HashSet<>();
+
+        int count = MethodRegistry.size();
+        for (int id = 0; id < count; id++) {
+            MethodDescriptor method = MethodRegistry.get(id);
+            if (method == null || !method.enabled) {
+                continue;
+            }
+
+            long calls = method.calls.sum();
+            long timedCalls = method.timedCalls.sum();
+            long timedNanos = method.timedNanos.sum();
+
+            long callsDelta = calls - method.lastCalls;
+            long timedCallsDelta = timedCalls - method.lastTimedCalls;
+            long timedNanosDelta = timedNanos - method.lastTimedNanos;
+
+            method.lastCalls = calls;
+            method.lastTimedCalls = timedCalls;
+            method.lastTimedNanos = timedNanos;
+
+            if (timedCallsDelta < MIN_TIMED_CALLS) {
+                continue;
+            }
+
+            double callsPerSecond = callsDelta / elapsedSeconds;
+            double meanMicros = timedNanosDelta / (double) timedCallsDelta / 1000.0;
+
+            if (callsPerSecond > MAX_CALLS_PER_SECOND && meanMicros < MIN_MEAN_DURATION_US) {
+                method.enabled = false;
+                DISABLED_METHODS.incrementAndGet();
+                System.err.println(String.format(
+                        "[CustomAgent] Governor disabled tracing of %s%s: %.0f calls/s, mean %.2f us",
+                        method.spanName, method.descriptor, callsPerSecond, meanMicros));
+                classesToRetransform.add(method.className);
+            }
+        }
+
+        if (RETRANSFORM_ENABLED && !classesToRetransform.isEmpty()) {
+            retransform(classesToRetransform);
+        }
+    }
+
+    /**
+     * Retransforms the loaded classes with these names; the transformer skips disabled methods.
+     */
+    static void retransform(Set<String> classNames) {
+        Instrumentation inst = instrumentation;
+        if (inst == null || !inst.isRetransformClassesSupported()) {
+            return;
+        }
+
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> loaded : inst.getAllLoadedClasses()) {
+            if (classNames.contains(loaded.getName()) && inst.isModifiableClass(loaded)) {
+                classes.add(loaded);
+            }
+        }
+        if (classes.isEmpty()) {
+            return;
+        }
+
+        try {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+            System.err.println("[CustomAgent] Governor retransformed " + classes.size() + " class(es) without disabled methods");
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Governor retransformation failed: " + t.getMessage());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.tracer.genericagent.instrumentation;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of instrumented methods. Every method gets an integer ID when it is woven,
+ * and the ID is baked into the advice as a constant, so the hot path is one array read.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class MethodRegistry {
+
+    /**
+     * Binds the integer ID of the instrumented method to an advice parameter.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface Id {
+    }
+
+    private static final Object LOCK = new Object();
+    private static final Map<String, Integer> IDS_BY_SIGNATURE = new ConcurrentHashMap<>();
+
+    private static volatile MethodDescriptor[] table = new MethodDescriptor[256];
+    private static int size;
+
+    private MethodRegistry() {}
+
+    /**
+     * Returns the descriptor for an ID previously handed out by {@link #register}.
+     */
+    public static MethodDescriptor get(int id) {
+        return table[id];
+    }
+
+    /**
+     * The method's span name for log messages, or "#id" when the ID isn't registered.
+     */
+    public static String nameOf(int id) {
+        MethodDescriptor[] current = table;
+        MethodDescriptor method = id >= 0 && id < current.length ? current[id] : null;
+        return method != null ? method.spanName : "#" + id;
+    }
+
+    /**
+     * Returns the descriptor of an already registered method, or null.
+     */
+    public static MethodDescriptor find(String className, String methodName, String descriptor) {
+        Integer id = IDS_BY_SIGNATURE.get(className + "." + methodName + descriptor);
+        return id == null ? null : table[id];
+    }
+
+    /**
+     * Number of methods registered so far.
+     */
+    public static int size() {
+        synchronized (LOCK) {
+            return size;
+        }
+    }
+
+    /**
+     * Registers a method (idempotent per class/method/descriptor) and returns its ID.
+     * Only called at transform time.
+     */
+    public static int register(String className, String methodName, String descriptor) {
+        String signature = className + "." + methodName + descriptor;
+        Integer existing = IDS_BY_SIGNATURE.get(signature);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (LOCK) {
+            existing = IDS_BY_SIGNATURE.get(signature);
+            if (existing != null) {
+                return existing;
+            }
+            int id = size++;
+            MethodDescriptor[] current = table;
+            if (id >= current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[id] = new MethodDescriptor(id, className, methodName, descriptor,
+                    SimplifiedGenericMethodAdvice.SERVICE_NAME);
+            // Volatile write publishes the new slot to readers on other threads
+            table = current;
+            IDS_BY_SIGNATURE.put(signature, id);
+            return id;
+        }
+    }
+
+    /**
+     * Resolves {@link Id} to an int constant while the advice is being woven.
+     */
+    public static final class IdMapping implements Advice.OffsetMapping {
+
+        @Override
+        public Target resolve(TypeDescription instrumentedType,
+                              MethodDescription instrumentedMethod,
+                              Assigner assigner,
+                              Advice.ArgumentHandler argumentHandler,
+                              Sort sort) {
+            int id = register(instrumentedType.getName(),
+                    instrumentedMethod.getInternalName(),
+                    instrumentedMethod.getDescriptor());
+            if (sort == Sort.ENTER) {
+                if (TransformTelemetry.ENABLED) {
+                    TransformTelemetry.methodInstrumented();
+                }
+                if (EntryPoints.ENABLED && !EntryPoints.isEntryPoint(instrumentedType, instrumentedMethod)) {
+                    get(id).belowEntryPoint = true;
+                }
+            }
+            return new Target.ForStackManipulation(IntegerConstant.forValue(id));
+        }
+    }
+}
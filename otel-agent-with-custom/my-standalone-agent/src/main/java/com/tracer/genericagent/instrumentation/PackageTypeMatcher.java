@@ -0,0 +1,269 @@
+package com.tracer.genericagent.instrumentation;
+
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Type matcher for the package rules, compiled once instead of chained junctions.
+ * A class matches when its name starts with an included package, starts with no
+ * excluded package, contains none of the excluded name fragments and is not an
+ * anonymous class (name ending in $digits).
+ *
+ * Prefixes live in one character trie, so the include and exclude rules are decided
+ * in a single walk over the name, and most JDK and library classes are rejected
+ * after a few characters. The fragments are matched together by an Aho-Corasick
+ * automaton in one pass. Names that pass the prefix test but are rejected later are
+ * remembered in a bounded negative cache.
+ */
+public final class PackageTypeMatcher extends ElementMatcher.Junction.AbstractBase<TypeDescription> {
+
+    private static final int NEGATIVE_CACHE_SIZE = 65536;
+
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private final PrefixTrie prefixes;
+    private final FragmentAutomaton fragments;
+    private final boolean excludeAnonymous;
+
+    private final Set<String> rejected = ConcurrentHashMap.newKeySet();
+
+    public PackageTypeMatcher(Collection<String> includePrefixes,
+                              Collection<String> excludePrefixes,
+                              Collection<String> excludeFragments,
+                              boolean excludeAnonymous) {
+        this.prefixes = new PrefixTrie();
+        for (String prefix : includePrefixes) {
+            prefixes.add(prefix, INCLUDE);
+        }
+        for (String prefix : excludePrefixes) {
+            prefixes.add(prefix, EXCLUDE);
+        }
+        this.fragments = new FragmentAutomaton(excludeFragments);
+        this.excludeAnonymous = excludeAnonymous;
+    }
+
+    @Override
+    public boolean matches(TypeDescription target) {
+        return matches(target.getName());
+    }
+
+    public boolean matches(String name) {
+        if (!prefixes.isIncluded(name)) {
+            return false;
+        }
+        if (rejected.contains(name)) {
+            return false;
+        }
+        if (fragments.containsAny(name) || (excludeAnonymous && isAnonymous(name))) {
+            // Bounded: start over rather than hold every rejected name of a large server
+            if (rejected.size() >= NEGATIVE_CACHE_SIZE) {
+                rejected.clear();
+            }
+            rejected.add(name);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as matching the name against .*\$\d+$
+     */
+    static boolean isAnonymous(String name) {
+        int i = name.length() - 1;
+        if (i < 0 || !isDigit(name.charAt(i))) {
+            return false;
+        }
+        while (i >= 0 && isDigit(name.charAt(i))) {
+            i--;
+        }
+        return i >= 0 && name.charAt(i) == '$';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    @Override
+    public String toString() {
+        return "packageRules(" + prefixes.size + " prefixes, " + fragments.patternCount + " fragments)";
+    }
+
+    /**
+     * Character trie of package prefixes, each node marked INCLUDE and/or EXCLUDE.
+     */
+    private static final class PrefixTrie {
+
+        private final Node root = new Node();
+        private int size;
+
+        void add(String prefix, byte flag) {
+            if (prefix == null || prefix.isEmpty()) {
+                return;
+            }
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+            }
+            if (node.flags == 0) {
+                size++;
+            }
+            node.flags |= flag;
+        }
+
+        /**
+         * True if some included prefix and no excluded prefix starts the name.
+         */
+        boolean isIncluded(String name) {
+            boolean included = false;
+            Node node = root;
+            for (int i = 0; i < name.length(); i++) {
+                node = node.children.get(name.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if ((node.flags & EXCLUDE) != 0) {
+                    return false;
+                }
+                if ((node.flags & INCLUDE) != 0) {
+                    included = true;
+                }
+            }
+            return included;
+        }
+
+        private static final class Node {
+            final Map<Character, Node> children = new HashMap<>(4);
+            byte flags;
+        }
+    }
+
+    /**
+     * Aho-Corasick automaton over the fragments, flattened into a transition table.
+     * Characters that occur in no fragment share one column, which always leads back
+     * to the root.
+     */
+    private static final class FragmentAutomaton {
+
+        final int patternCount;
+
+        // Column for every char of the fragments; 0 for all other chars
+        private final Map<Character, Integer> columns = new HashMap<>();
+        private final int[] asciiColumns = new int[128];
+        private final int[][] transitions;
+        private final boolean[] accepting;
+
+        FragmentAutomaton(Collection<String> patterns) {
+            List<String> unique = new ArrayList<>();
+            for (String pattern : patterns) {
+                if (pattern != null && !pattern.isEmpty() && !unique.contains(pattern)) {
+                    unique.add(pattern);
+                }
+            }
+            this.patternCount = unique.size();
+
+            for (String pattern : unique) {
+                for (int i = 0; i < pattern.length(); i++) {
+                    columns.putIfAbsent(pattern.charAt(i), columns.size() + 1);
+                }
+            }
+            for (Map.Entry<Character, Integer> entry : columns.entrySet()) {
+                if (entry.getKey() < 128) {
+                    asciiColumns[entry.getKey()] = entry.getValue();
+                }
+            }
+            int width = columns.size() + 1;
+
+            // Goto function of the keyword trie; -1 = no edge
+            List<int[]> trie = new ArrayList<>();
+            List<Boolean> ends = new ArrayList<>();
+            trie.add(newRow(width));
+            ends.add(false);
+            for (String pattern : unique) {
+                int state = 0;
+                for (int i = 0; i < pattern.length(); i++) {
+                    int column = columnOf(pattern.charAt(i));
+                    if (trie.get(state)[column] < 0) {
+                        trie.get(state)[column] = trie.size();
+                        trie.add(newRow(width));
+                        ends.add(false);
+                    }
+                    state = trie.get(state)[column];
+                }
+                ends.set(state, true);
+            }
+
+            // Breadth-first failure links, folded into a complete transition table
+            int states = trie.size();
+            transitions = new int[states][];
+            accepting = new boolean[states];
+            int[] failure = new int[states];
+            for (int s = 0; s < states; s++) {
+                transitions[s] = trie.get(s).clone();
+                accepting[s] = ends.get(s);
+            }
+            Queue<Integer> queue = new ArrayDeque<>();
+            for (int column = 0; column < width; column++) {
+                int next = transitions[0][column];
+                if (next < 0) {
+                    transitions[0][column] = 0;
+                } else {
+                    failure[next] = 0;
+                    queue.add(next);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                accepting[state] |= accepting[failure[state]];
+                for (int column = 0; column < width; column++) {
+                    int next = transitions[state][column];
+                    if (next < 0) {
+                        transitions[state][column] = transitions[failure[state]][column];
+                    } else {
+                        failure[next] = transitions[failure[state]][column];
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+
+        boolean containsAny(String name) {
+            if (patternCount == 0) {
+                return false;
+            }
+            int state = 0;
+            for (int i = 0; i < name.length(); i++) {
+                state = transitions[state][columnOf(name.charAt(i))];
+                if (accepting[state]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int columnOf(char c) {
+            if (c < 128) {
+                return asciiColumns[c];
+            }
+            Integer column = columns.get(c);
+            return column == null ? 0 : column;
+        }
+
+        private static int[] newRow(int width) {
+            int[] row = new int[width];
+            Arrays.fill(row, -1);
+            return row;
+        }
+    }
+}
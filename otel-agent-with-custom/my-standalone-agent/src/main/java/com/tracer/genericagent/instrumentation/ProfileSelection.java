@@ -0,0 +1,235 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The methods chosen by profile-guided instrumentation (profile.guided.enabled). Instead
+ * of every method of instrument.packages, only the methods of those packages that a
+ * profile shows spending the most wall-clock time per call are instrumented: JfrProfiler
+ * ranks them from profile.jfr.file, or from a recording of profile.duration.ms taken
+ * at startup, and keeps the top profile.top.methods whose mean call takes at least
+ * profile.min.call.ms. Methods that are hot only because they are called very often
+ * are left out; the governor still watches the ones that are chosen.
+ *
+ * The selection is saved to profile.plan.file and reused by later boots for the same
+ * instrument.packages, without profiling again. Delete the file to profile again.
+ */
+public final class ProfileSelection {
+
+    public static final boolean ENABLED =
+            ConfigReader.getBooleanProperty("profile.guided.enabled", false);
+    public static final String JFR_FILE = ConfigReader.getProperty("profile.jfr.file", "");
+    public static final long DURATION_MS =
+            ConfigReader.getLongProperty("profile.duration.ms", 60000);
+    public static final long SAMPLE_PERIOD_MS =
+            ConfigReader.getLongProperty("profile.sample.period.ms", 10);
+    public static final int TOP_METHODS = ConfigReader.getIntProperty("profile.top.methods", 50);
+    public static final long MIN_CALL_MS = ConfigReader.getLongProperty("profile.min.call.ms", 20);
+    public static final String PLAN_FILE = ConfigReader.getProperty("profile.plan.file",
+            Paths.get(System.getProperty("java.io.tmpdir"), "custom-agent-profile.plan").toString());
+
+    private static final String HEADER = "# custom agent profile plan v1";
+    private static final String PACKAGES = "# packages=";
+
+    private final List<String> packagePrefixes;
+    private final List<Entry> methods;
+    private final Map<String, Set<String>> methodsByType = new HashMap<>();
+
+    public ProfileSelection(List<String> packagePrefixes, List<Entry> methods) {
+        this.packagePrefixes = Collections.unmodifiableList(new ArrayList<>(packagePrefixes));
+        this.methods = Collections.unmodifiableList(new ArrayList<>(methods));
+        for (Entry entry : methods) {
+            methodsByType.computeIfAbsent(entry.typeName, type -> new HashSet<>())
+                    .add(entry.methodName + entry.descriptor);
+        }
+    }
+
+    /**
+     * Whether any method of the type is selected.
+     */
+    public boolean containsType(String typeName) {
+        return methodsByType.containsKey(typeName);
+    }
+
+    /**
+     * The selected methods of the given type.
+     */
+    public ElementMatcher.Junction<MethodDescription> matcherFor(String typeName) {
+        Set<String> selected = methodsByType.getOrDefault(typeName, Collections.emptySet());
+        return new ElementMatcher.Junction.AbstractBase<MethodDescription>() {
+            @Override
+            public boolean matches(MethodDescription method) {
+                return selected.contains(method.getInternalName() + method.getDescriptor());
+            }
+        };
+    }
+
+    public List<String> getPackagePrefixes() {
+        return packagePrefixes;
+    }
+
+    /**
+     * The selected methods, highest wall-clock time first.
+     */
+    public List<Entry> getMethods() {
+        return methods;
+    }
+
+    /**
+     * Identifies the selection for keying cached class bytes.
+     */
+    public String fingerprint() {
+        StringBuilder keys = new StringBuilder();
+        for (Entry entry : methods) {
+            keys.append(entry.key()).append(';');
+        }
+        return keys.toString();
+    }
+
+    /**
+     * The selection saved in the file for the given packages, or null when there is none,
+     * it was made for other packages, or it can't be read.
+     */
+    public static ProfileSelection load(Path file, List<String> packagePrefixes) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.size() < 2 || !HEADER.equals(lines.get(0))
+                    || !(PACKAGES + String.join(",", packagePrefixes)).equals(lines.get(1))) {
+                System.err.println("[CustomAgent] Profile plan " + file + " was made for other packages, profiling again");
+                return null;
+            }
+            List<Entry> methods = new ArrayList<>();
+            for (String line : lines.subList(2, lines.size())) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                methods.add(Entry.parse(line));
+            }
+            return new ProfileSelection(packagePrefixes, methods);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[CustomAgent] Could not read profile plan " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the selection to the file, replacing it at once.
+     */
+    public void save(Path file) {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write(HEADER);
+                out.newLine();
+                out.write(PACKAGES + String.join(",", packagePrefixes));
+                out.newLine();
+                out.write("# type method descriptor wall_ms estimated_calls samples");
+                out.newLine();
+                for (Entry entry : methods) {
+                    out.write(entry.format());
+                    out.newLine();
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[CustomAgent] Could not write profile plan " + file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProfileSelection{" + methods.size() + " methods in " + methodsByType.size() + " types}";
+    }
+
+    /**
+     * One ranked method: its wall-clock time on the sampled stacks, the number of calls
+     * the samples suggest, and the number of samples it appeared in.
+     */
+    public static final class Entry {
+        private final String typeName;
+        private final String methodName;
+        private final String descriptor;
+        private final long wallMs;
+        private final long estimatedCalls;
+        private final long samples;
+
+        public Entry(String typeName, String methodName, String descriptor,
+                     long wallMs, long estimatedCalls, long samples) {
+            this.typeName = typeName;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.wallMs = wallMs;
+            this.estimatedCalls = estimatedCalls;
+            this.samples = samples;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public long getWallMs() {
+            return wallMs;
+        }
+
+        public long getEstimatedCalls() {
+            return estimatedCalls;
+        }
+
+        public long getMeanCallMs() {
+            return estimatedCalls == 0 ? 0 : wallMs / estimatedCalls;
+        }
+
+        String key() {
+            return typeName + "#" + methodName + descriptor;
+        }
+
+        String format() {
+            return typeName + " " + methodName + " " + descriptor + " " + wallMs + " " + estimatedCalls + " " + samples;
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 6) {
+                throw new IllegalArgumentException("bad profile plan line: " + line);
+            }
+            return new Entry(fields[0], fields[1], fields[2],
+                    Long.parseLong(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5]));
+        }
+
+        @Override
+        public String toString() {
+            return key() + " " + wallMs + " ms over ~" + estimatedCalls + " calls";
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.tracer.genericagent.instrumentation;
+
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.ContextKey;
+
+/**
+ * Recursion bookkeeping for the handoff advice, and for virtual threads under the stack
+ * advice, which have no per-thread stack to search. Each traced call stores a frame in
+ * the context it makes current, linked to the enclosing frame, so a re-entry can find
+ * the method's outermost call on the current path, and a call can tell how many traced
+ * calls it is nested in. Frames are only matched on the thread that created them: a
+ * context carried into a task on another thread never folds that task into a span that
+ * may already have ended, and starts counting nesting afresh.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class RecursionFrame {
+
+    private static final ContextKey<RecursionFrame> KEY = ContextKey.named("custom-agent-recursion-frame");
+
+    final int methodId;
+    final RecursionFrame parent;
+    final Thread owner;
+    // Frames on the current path on this thread, counting this one
+    final int pathDepth;
+
+    // Recursive calls folded into this frame: total, currently active, and deepest nesting seen
+    private int calls;
+    private int active;
+    private int maxActive;
+
+    private RecursionFrame(int methodId, RecursionFrame parent, Thread owner) {
+        this.methodId = methodId;
+        this.parent = parent;
+        this.owner = owner;
+        this.pathDepth = parent != null && parent.owner == owner ? parent.pathDepth + 1 : 1;
+    }
+
+    /**
+     * Context with the span and a new frame for this call.
+     */
+    public static Context push(Context context, int methodId) {
+        RecursionFrame frame = new RecursionFrame(methodId, context.get(KEY), Thread.currentThread());
+        return context.with(KEY, frame);
+    }
+
+    public static RecursionFrame current(Context context) {
+        return context.get(KEY);
+    }
+
+    /**
+     * Number of traced calls on the current path and thread, 0 when there are none.
+     */
+    public static int pathDepth(Context context) {
+        RecursionFrame frame = context.get(KEY);
+        return frame != null && frame.owner == Thread.currentThread() ? frame.pathDepth : 0;
+    }
+
+    /**
+     * The frame of this method on the current path and thread, or null.
+     */
+    public static RecursionFrame find(Context context, int methodId) {
+        Thread thread = Thread.currentThread();
+        for (RecursionFrame frame = context.get(KEY); frame != null && frame.owner == thread; frame = frame.parent) {
+            if (frame.methodId == methodId) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    public void enterRecursion() {
+        calls++;
+        if (++active > maxActive) {
+            maxActive = active;
+        }
+    }
+
+    public void exitRecursion() {
+        active--;
+    }
+
+    public int calls() {
+        return calls;
+    }
+
+    /**
+     * Deepest recursion reached under this frame, counting the frame itself.
+     */
+    public int depth() {
+        return maxActive + 1;
+    }
+}
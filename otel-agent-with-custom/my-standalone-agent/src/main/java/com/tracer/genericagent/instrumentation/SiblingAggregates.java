@@ -0,0 +1,142 @@
+package com.tracer.genericagent.instrumentation;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Context;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-parent call statistics for the child methods a traced call makes, used to stop
+ * a loop from producing thousands of sibling spans. The first
+ * sibling.aggregation.threshold calls of each child method get their own spans; later
+ * calls only add to count, total/min/max duration and error count, which are emitted
+ * as one summary span per child method when the parent ends. Instances belong to a
+ * SpanStack slot and are reset and reused, so the hot path does not allocate.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class SiblingAggregates {
+
+    // Distinct child methods tracked per parent; calls to any others are traced as usual
+    private static final int MAX_METHODS = 8;
+
+    public static final AttributeKey<Long> AGGREGATED_COUNT = AttributeKey.longKey("aggregated.count");
+    public static final AttributeKey<Long> AGGREGATED_ERRORS = AttributeKey.longKey("aggregated.errors");
+    public static final AttributeKey<Long> AGGREGATED_TOTAL_US = AttributeKey.longKey("aggregated.total_us");
+    public static final AttributeKey<Long> AGGREGATED_MIN_US = AttributeKey.longKey("aggregated.min_us");
+    public static final AttributeKey<Long> AGGREGATED_MAX_US = AttributeKey.longKey("aggregated.max_us");
+
+    private final int[] methodIds = new int[MAX_METHODS];
+    private final int[] started = new int[MAX_METHODS];
+    private final long[] count = new long[MAX_METHODS];
+    private final long[] errors = new long[MAX_METHODS];
+    private final long[] totalNanos = new long[MAX_METHODS];
+    private final long[] minNanos = new long[MAX_METHODS];
+    private final long[] maxNanos = new long[MAX_METHODS];
+    private final long[] firstStartNanos = new long[MAX_METHODS];
+    private final long[] lastEndNanos = new long[MAX_METHODS];
+    private int size;
+
+    /**
+     * Counts a call to this child method and returns true once it is past the threshold,
+     * meaning the call should only be added to the statistics.
+     */
+    public boolean shouldAggregate(int methodId, int threshold) {
+        int slot = slotOf(methodId);
+        if (slot < 0) {
+            if (size == MAX_METHODS) {
+                return false;
+            }
+            slot = size++;
+            methodIds[slot] = methodId;
+        }
+        return ++started[slot] > threshold;
+    }
+
+    /**
+     * Adds a finished aggregated call.
+     */
+    public void record(int methodId, long startNanos, long endNanos, boolean failed) {
+        int slot = slotOf(methodId);
+        if (slot < 0) {
+            return;
+        }
+        long durationNanos = endNanos - startNanos;
+        if (count[slot]++ == 0) {
+            firstStartNanos[slot] = startNanos;
+            minNanos[slot] = durationNanos;
+            maxNanos[slot] = durationNanos;
+        } else {
+            minNanos[slot] = Math.min(minNanos[slot], durationNanos);
+            maxNanos[slot] = Math.max(maxNanos[slot], durationNanos);
+        }
+        totalNanos[slot] += durationNanos;
+        lastEndNanos[slot] = endNanos;
+        if (failed) {
+            errors[slot]++;
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Emits one summary span per aggregated child method, as a child of parentContext,
+     * spanning the first aggregated call's start to the last one's end.
+     */
+    public void emit(Context parentContext) {
+        for (int slot = 0; slot < size; slot++) {
+            if (count[slot] == 0) {
+                continue;
+            }
+            Span span = SimplifiedGenericMethodAdvice.startSpan(methodIds[slot], parentContext,
+                    SimplifiedGenericMethodAdvice.EPOCH_OFFSET_NANOS + firstStartNanos[slot]);
+            if (span == null) {
+                continue;
+            }
+            try {
+                if (span.isRecording()) {
+                    span.setAttribute(AGGREGATED_COUNT, count[slot]);
+                    span.setAttribute(AGGREGATED_ERRORS, errors[slot]);
+                    span.setAttribute(AGGREGATED_TOTAL_US, TimeUnit.NANOSECONDS.toMicros(totalNanos[slot]));
+                    span.setAttribute(AGGREGATED_MIN_US, TimeUnit.NANOSECONDS.toMicros(minNanos[slot]));
+                    span.setAttribute(AGGREGATED_MAX_US, TimeUnit.NANOSECONDS.toMicros(maxNanos[slot]));
+                    span.setAttribute(SimplifiedGenericMethodAdvice.DURATION_MS,
+                            TimeUnit.NANOSECONDS.toMillis(lastEndNanos[slot] - firstStartNanos[slot]));
+                    span.setAttribute(SimplifiedGenericMethodAdvice.AI_OPERATION_IS_SUCCESSFUL, errors[slot] == 0);
+                    if (errors[slot] > 0) {
+                        span.setAttribute(SimplifiedGenericMethodAdvice.ERROR, true);
+                        span.setStatus(StatusCode.ERROR, errors[slot] + " of " + count[slot] + " aggregated calls failed");
+                    } else {
+                        span.setStatus(StatusCode.OK);
+                    }
+                }
+            } finally {
+                span.end(SimplifiedGenericMethodAdvice.EPOCH_OFFSET_NANOS + lastEndNanos[slot], TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    public void reset() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(started, 0, size, 0);
+        Arrays.fill(count, 0, size, 0L);
+        Arrays.fill(errors, 0, size, 0L);
+        Arrays.fill(totalNanos, 0, size, 0L);
+        size = 0;
+    }
+
+    private int slotOf(int methodId) {
+        for (int i = 0; i < size; i++) {
+            if (methodIds[i] == methodId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
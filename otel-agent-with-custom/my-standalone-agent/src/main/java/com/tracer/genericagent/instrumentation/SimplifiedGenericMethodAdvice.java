@@ -1,9 +1,10 @@
 package com.tracer.genericagent.instrumentation;
 
 import com.tracer.genericagent.util.ConfigReader;
-import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
@@ -12,13 +13,11 @@ import io.opentelemetry.context.Context;
 
 import net.bytebuddy.asm.Advice;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.UUID;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simplified version with improved
@@ -42,16 +41,28 @@ public class SimplifiedGenericMethodAdvice {
     public static final boolean VERBOSE_LOGGING =
             ConfigReader.getBooleanProperty("error.capture.verbose.logging", false);
 
+    // Advice implementation woven into methods ("stack", "handoff" or "lazy"), see EnhancedGenericMethodAdvisor
+    public static final String ADVICE_MODE = ConfigReader.getAdviceMode();
+
+    // Fold re-entries into a method already on the current path into its outermost span
+    public static final boolean RECURSION_FOLDING_ENABLED =
+            ConfigReader.getBooleanProperty("recursion.folding.enabled", true);
+
+    // Past this many calls of the same child method under one parent, further calls only add to a summary span
+    public static final boolean SIBLING_AGGREGATION_ENABLED =
+            ConfigReader.getBooleanProperty("sibling.aggregation.enabled", false);
+    public static final int SIBLING_AGGREGATION_THRESHOLD =
+            ConfigReader.getIntProperty("sibling.aggregation.threshold", 10);
+
+    // Skip span building for calls whose trace is not sampled and only propagate context
+    public static final boolean SAMPLING_FAST_PATH_ENABLED =
+            ConfigReader.getBooleanProperty("sampling.fast.path.enabled", true);
+
     // Parse ignored exceptions from config
     public static final Set<String> IGNORED_EXCEPTIONS = parseIgnoredExceptions(
             ConfigReader.getProperty("error.capture.ignored.exceptions", "InterruptedException,TimeoutException")
     );
 
-    // ============= RATE LIMITING FOR ERROR SPANS =============
-
-    public static final ConcurrentHashMap<String, Long> ERROR_RATE_LIMITER = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<String, Integer> ERROR_COUNTS = new ConcurrentHashMap<>();
-
     // Static initialization block to verify class loading
     static {
         System.err.println("[CustomAgent] SimplifiedGenericMethodAdvice loaded - Error capture: " +
@@ -59,14 +70,17 @@ public class SimplifiedGenericMethodAdvice {
                 ", Max stack: " + MAX_STACK_LENGTH);
     }
 
-    // ThreadLocal cleanup thread
+    // How often the background thread checks whether GlobalOpenTelemetry was replaced
+    private static final long TRACER_REFRESH_INTERVAL_MS =
+            Math.max(100, ConfigReader.getLongProperty("tracer.refresh.interval.ms", 5000));
+
+    // Background refresh thread; leaked per-thread spans are handled by SpanStackRegistry
     static {
         Thread cleanupThread = new Thread(() -> {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    Thread.sleep(180000); // 3 minutes
-                    cleanupOrphanedThreadLocals();
-                    cleanupRateLimiters();
+                    Thread.sleep(TRACER_REFRESH_INTERVAL_MS);
+                    TracerHolder.refreshIfChanged();
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -79,8 +93,27 @@ public class SimplifiedGenericMethodAdvice {
 
     // ============= PUBLIC STATIC FIELDS FOR MODULE ACCESS =============
 
-    // Using stack-based approach for proper parent-child relationship
-    public static final ThreadLocal<Deque<SpanInfo>> ACTIVE_SPANS_STACK = ThreadLocal.withInitial(ArrayDeque::new);
+    // Using stack-based approach for proper parent-child relationship; each stack is registered for the leak sweeper
+    public static final ThreadLocal<SpanStack> ACTIVE_SPANS_STACK = ThreadLocal.withInitial(SpanStackRegistry::register);
+
+    // Skip instrumentation if the stack gets this deep
+    public static final int MAX_STACK_DEPTH = 150;
+
+    // Where the lazy advice's onEnter put the call, handed to its onExit via @Advice.Enter
+    public static final int NOT_TRACED = 0;
+    public static final int ON_STACK = 1;
+    public static final int FOLDED = 2;
+
+    // Where enter() put the call's span, handed to exit() through onEnter's return value
+    public static final Object STACK_FRAME = new Object();
+    public static final Object FOLDED_FRAME = new Object();
+    public static final Object SUMMARIZED_FRAME = new Object();
+    // A virtual thread's call that started no span
+    public static final Object NO_SPAN_FRAME = new Object();
+
+    // Converts System.nanoTime() readings to epoch nanos for back-dated span timestamps
+    public static final long EPOCH_OFFSET_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
 
     // Static configuration values with defaults - must be public
     public static final String SERVICE_NAME = ConfigReader.getProperty("service.name", "MyOrgApplication");
@@ -90,6 +123,16 @@ public class SimplifiedGenericMethodAdvice {
     public static final String INSTANCE_ID = UUID.randomUUID().toString().substring(0, 8);
     public static final String APP_VERSION = "1.0.0";
 
+    // Pre-built keys for the per-call attributes, so the hot path never calls AttributeKey.stringKey
+    public static final AttributeKey<String> AI_OPERATION_PARENT_ID = AttributeKey.stringKey("ai.operation.parentId");
+    public static final AttributeKey<String> AI_OPERATION_ID = AttributeKey.stringKey("ai.operation.id");
+    public static final AttributeKey<Boolean> AI_OPERATION_IS_SUCCESSFUL = AttributeKey.booleanKey("ai.operation.isSuccessful");
+    public static final AttributeKey<String> TRACE_ID = AttributeKey.stringKey("trace.id");
+    public static final AttributeKey<Long> DURATION_MS = AttributeKey.longKey("duration_ms");
+    public static final AttributeKey<Boolean> ERROR = AttributeKey.booleanKey("error");
+    public static final AttributeKey<Long> RECURSION_DEPTH = AttributeKey.longKey("recursion.depth");
+    public static final AttributeKey<Long> RECURSION_CALLS = AttributeKey.longKey("recursion.calls");
+
     /**
      * Parse ignored exceptions from comma-separated string
      */
@@ -102,231 +145,187 @@ public class SimplifiedGenericMethodAdvice {
 
 
     /**
-     * Get the tracer from the current GlobalOpenTelemetry instance.
-     * This ensures compatibility with other agents that might have set up OpenTelemetry.
+     * Get the tracer resolved from the current GlobalOpenTelemetry instance.
+     * This ensures compatibility with other agents that might have set up OpenTelemetry;
+     * the tracer is re-resolved only when the global instance changes (see TracerHolder).
      * MUST BE PUBLIC STATIC for accessibility from instrumented classes.
      */
     public static Tracer getTracer() {
-        try {
-            Tracer tracer = GlobalOpenTelemetry.get().getTracer("generic-agent-tracer", "1.0.0");
-            if (tracer == null) {
-                if (VERBOSE_LOGGING) {
-                    System.err.println("[CustomAgent] Received null tracer, using fallback");
-                }
-                return GlobalOpenTelemetry.getTracerProvider().get("generic-agent-fallback");
-            }
-            return tracer;
-        } catch (Exception e) {
-            if (VERBOSE_LOGGING) {
-                System.err.println("[CustomAgent] Error getting global tracer: " + e.getMessage());
-            }
-            // Create a fallback tracer using TracerProvider
-            return GlobalOpenTelemetry.getTracerProvider().get("generic-agent-fallback");
-        }
+        return TracerHolder.get();
     }
 
     /**
-     * Check if we should create detailed error span based on rate limiting
+     * Method entry advice, inlined into every instrumented method. It is kept to the
+     * governor's enabled check and a call to enter(), so that an instrumented method
+     * stays within HotSpot's inlining limits (MaxInlineSize, FreqInlineSize) and is still
+     * inlined into its callers. Returns the call's frame for onExit, null when the
+     * governor has switched the method off.
      */
-    public static boolean shouldCreateDetailedErrorSpan(String errorKey, long currentTime) {
-        // Clean up old entries
-        ERROR_RATE_LIMITER.entrySet().removeIf(entry ->
-                currentTime - entry.getValue() > ERROR_RATE_LIMIT_MS);
-
-        // Count recent errors for this key
-        long recentErrors = ERROR_RATE_LIMITER.entrySet().stream()
-                .filter(entry -> entry.getKey().startsWith(errorKey.split(":")[0])) // Same method
-                .count();
-
-        if (recentErrors < MAX_ERROR_SPANS_PER_MINUTE) {
-            ERROR_RATE_LIMITER.put(errorKey + ":" + currentTime, currentTime);
-            return true;
-        }
-        return false;
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static Object onEnter(@MethodRegistry.Id int methodId) {
+        return MethodRegistry.get(methodId).enabled ? enter(methodId) : null;
     }
 
     /**
-     * Cleanup rate limiter maps periodically
+     * Method exit advice, inlined like onEnter: everything but the null check is in exit().
      */
-    public static void cleanupRateLimiters() {
-        try {
-            long currentTime = System.currentTimeMillis();
-            ERROR_RATE_LIMITER.entrySet().removeIf(entry ->
-                    currentTime - entry.getValue() > ERROR_RATE_LIMIT_MS);
-
-            // Reset error counts every hour
-            if (ERROR_COUNTS.size() > 1000) {
-                ERROR_COUNTS.clear();
-            }
-        } catch (Exception e) {
-            // Ignore cleanup errors
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void onExit(
+            @MethodRegistry.Id int methodId,
+            @Advice.Enter Object frame,
+            @Advice.Thrown Throwable thrown) {
+        if (frame != null) {
+            exit(methodId, frame, thrown);
         }
     }
 
+    // ============= OUT-OF-LINE ENTRY AND EXIT =============
+
     /**
-     * Cleanup orphaned ThreadLocal entries to prevent memory leaks
+     * Starts tracing a call and returns where its span was put: STACK_FRAME for the
+     * per-thread span stack, FOLDED_FRAME for a recursive call counted on the method's
+     * outermost frame, SUMMARIZED_FRAME for a call past the sibling aggregation
+     * threshold (or under one), or a LocalFrame holding the span on virtual threads, so
+     * that short-lived virtual threads never get a ThreadLocal stack. A recursive call on
+     * a virtual thread returns the RecursionFrame of the outermost call it is folded into.
      */
-    public static void cleanupOrphanedThreadLocals() {
-        try {
-            Deque<SpanInfo> stack = ACTIVE_SPANS_STACK.get();
-            if (stack != null && !stack.isEmpty()) {
-                if (VERBOSE_LOGGING) {
-                    System.err.println("[CustomAgent] WARNING: Found " + stack.size() + " orphaned spans, cleaning up");
-                }
-
-                // Close all orphaned spans
-                while (!stack.isEmpty()) {
-                    SpanInfo info = stack.pop();
-                    try {
-                        if (info.span != null) info.span.end();
-                        if (info.scope != null) info.scope.close();
-                    } catch (Exception e) {
-                        // Ignore cleanup errors
-                    }
-                }
-                ACTIVE_SPANS_STACK.remove();
-            }
-        } catch (Exception e) {
-            // Ignore cleanup errors in background thread
+    public static Object enter(int methodId) {
+        if (VirtualThreads.isCurrentThreadVirtual()) {
+            return enterLocal(methodId);
         }
-    }
 
-    /**
-     * Public static class to hold span information.
-     */
-    public static class SpanInfo {
-        public final Span span;
-        public final Scope scope;
-        public final long startTimeMs;
+        SpanStack stack = ACTIVE_SPANS_STACK.get();
 
-        public SpanInfo(Span span, Scope scope) {
-            this.span = span;
-            this.scope = scope;
-            this.startTimeMs = System.currentTimeMillis();
+        // Frames left by calls whose exit never ran: their spans were ended by the leak sweeper
+        if (stack.hasLeaked()) {
+            stack.unwindLeaked();
         }
-    }
-
-    @Advice.OnMethodEnter(suppress = Throwable.class)
-    public static void onEnter(@Advice.Origin("#t.#m") String methodName) {
-        try {
 
-            Deque<SpanInfo> stack = ACTIVE_SPANS_STACK.get();
-            if (stack != null && stack.size() > 150) {
-                return; // Skip instrumentation if too deep
+        if (RECURSION_FOLDING_ENABLED) {
+            int outer = stack.indexOf(methodId);
+            if (outer >= 0) {
+                stack.enterRecursion(outer);
+                return FOLDED_FRAME;
             }
+        }
 
-            // Split method name into class and method parts
-            String className = methodName.substring(0, methodName.lastIndexOf('.'));
-            String methodNameOnly = methodName.substring(methodName.lastIndexOf('.') + 1);
-
-            // Get the tracer dynamically
-            Tracer tracer = getTracer();
-            if (tracer == null) {
-                return; // Cannot proceed without tracer
+        if (SIBLING_AGGREGATION_ENABLED && !stack.isEmpty()) {
+            int parent = stack.size() - 1;
+            if (stack.isSummarized(parent)) {
+                // Part of an aggregated call: covered by its duration, not traced on its own
+                stack.pushSummarized(methodId, 0L);
+                return SUMMARIZED_FRAME;
             }
-
-            // Important: Get the current context - this might contain a span from the OTel agent
-            Context currentContext = Context.current();
-            Span parentSpan = Span.fromContext(currentContext);
-
-            // Create builder with proper parent context
-            SpanBuilder spanBuilder = tracer.spanBuilder(methodName)
-                    .setSpanKind(SpanKind.INTERNAL)
-                    .setParent(currentContext);
-
-            String operationId;
-            String parentId = "";
-
-            if (parentSpan != null && parentSpan.getSpanContext().isValid() &&
-                    !parentSpan.getSpanContext().getTraceId().equals("00000000000000000000000000000000")) {
-                // Use the existing trace ID for correlation with App Insights
-                operationId = parentSpan.getSpanContext().getTraceId();
-                parentId = parentSpan.getSpanContext().getSpanId();
-            } else {
-                // Only generate new if no parent exists
-                operationId = UUID.randomUUID().toString();
+            Span parentSpan = stack.spanAt(parent);
+            if (parentSpan != null && parentSpan.isRecording()
+                    && stack.siblingsAt(parent).shouldAggregate(methodId, SIBLING_AGGREGATION_THRESHOLD)) {
+                stack.pushSummarized(methodId, System.nanoTime());
+                return SUMMARIZED_FRAME;
             }
+        }
 
-            Span span = spanBuilder
-                    // Essential Azure Application Insights attributes
-                    .setAttribute("ai.operation.name", methodName)
-                    .setAttribute("ai.cloud.role", SERVICE_NAME)
-                    .setAttribute("ai.operation.parentId", parentId)
-                    // Essential service identification
-                    .setAttribute("service.name", SERVICE_NAME)
-                    // Method identification (essential for debugging)
-                    .setAttribute("code.namespace", className)
-                    .setAttribute("code.function", methodNameOnly)
-                    .startSpan();
-
-            if (span != null) {
-                span.setAttribute("trace.id", span.getSpanContext().getTraceId());
-                span.setAttribute("ai.operation.id", span.getSpanContext().getTraceId());
-
-                // Make the new span current
-                Scope scope = span.makeCurrent();
-
-//                            System.out.println("[GenericMethodAdvice] ENTER: " + methodName +
-//                                    " --> traceId=" + span.getSpanContext().getTraceId() +
-//                                    ", spanId=" + span.getSpanContext().getSpanId());
-                // Push to stack for parent-child tracking
-                ACTIVE_SPANS_STACK.get().push(new SpanInfo(span, scope));
-            }
+        Span span = null;
+        Scope scope = null;
+        long startNanos = 0L;
 
+        try {
+            // Skip instrumentation if too deep, but still push a frame so onExit stays paired
+            if (stack.size() < MAX_STACK_DEPTH) {
+                span = startSpan(methodId);
+                if (span != null) {
+                    // Make the new span current, even when not recording, so children see the sampling decision
+                    scope = span.makeCurrent();
+                    startNanos = span.isRecording() ? System.nanoTime() : 0L;
+                }
+            }
         } catch (Throwable t) {
             // Log error but catch all exceptions to prevent app impact
-            System.err.println("[CustomAgent] ERROR in onEnter for " + methodName + ": " + t.getMessage());
+            System.err.println("[CustomAgent] ERROR in onEnter for method " + MethodRegistry.nameOf(methodId) + ": " + t.getMessage());
 
-            // Don't let onEnter failures leak ThreadLocal entries
-            try {
-                Deque<SpanInfo> stack = ACTIVE_SPANS_STACK.get();
-                if (stack != null && !stack.isEmpty()) {
-                    SpanInfo lastEntry = stack.peek();
-                    // Only clean up if this looks like our failed entry
-                    if (lastEntry != null) {
-                        stack.pop();
-                        try {
-                            if (lastEntry.span != null) lastEntry.span.end();
-                            if (lastEntry.scope != null) lastEntry.scope.close();
-                        } catch (Exception cleanup) {
-                            // Ignore cleanup errors
-                        }
-                    }
-                }
-            } catch (Exception cleanup) {
-                // Ignore cleanup errors
-            }
+            // Don't leave a half-started span behind
+            abandonSpan(span, scope);
+            span = null;
+            scope = null;
         }
+
+        // Push to stack for parent-child tracking
+        stack.push(methodId, span, scope, startNanos);
+        return STACK_FRAME;
     }
 
     /**
-     * Method exit advice with enhanced error handling and configurable exception capture.
-     */
-    /**
-     * Method exit advice with enhanced error handling and configurable exception capture.
+     * Finishes a call started by enter(), with enhanced error handling and configurable
+     * exception capture.
      */
-    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
-    public static void onExit(
-            @Advice.Origin("#t.#m") String methodName,
-            @Advice.Thrown Throwable thrown) {
+    public static void exit(int methodId, Object frame, Throwable thrown) {
+        if (frame instanceof LocalFrame) {
+            LocalFrame local = (LocalFrame) frame;
+            try {
+                if (local.recursion.calls() > 0 && local.span.isRecording()) {
+                    local.span.setAttribute(RECURSION_DEPTH, local.recursion.depth());
+                    local.span.setAttribute(RECURSION_CALLS, local.recursion.calls());
+                }
+                endSpan(methodId, local.span, local.scope, local.startNanos, thrown);
+            } catch (Throwable t) {
+                System.err.println("[CustomAgent] Critical error in onExit for method " + MethodRegistry.nameOf(methodId) + ": " + t.getMessage());
+                abandonSpan(local.span, local.scope);
+            }
+            return;
+        }
+        if (frame instanceof RecursionFrame) {
+            ((RecursionFrame) frame).exitRecursion();
+            return;
+        }
+        if (frame == FOLDED_FRAME) {
+            SpanStack stack = ACTIVE_SPANS_STACK.get();
+            int outer = stack.indexOf(methodId);
+            if (outer >= 0) {
+                stack.exitRecursion(outer);
+            }
+            return;
+        }
+        if (frame == SUMMARIZED_FRAME) {
+            SpanStack stack = ACTIVE_SPANS_STACK.get();
+            if (stack.isEmpty()) {
+                return;
+            }
+            long startNanos = stack.topStartNanos();
+            stack.pop();
+            int parent = stack.size() - 1;
+            if (parent >= 0 && !stack.isSummarized(parent)) {
+                stack.siblingsAt(parent).record(methodId, startNanos, System.nanoTime(), thrown != null);
+            }
+            return;
+        }
+        if (frame != STACK_FRAME) {
+            return;
+        }
 
-        SpanInfo info = null;
         Span span = null;
         Scope scope = null;
-        Deque<SpanInfo> stack = null; // Declare once at the top
 
         try {
             // Get and remove the current span from stack
-            stack = ACTIVE_SPANS_STACK.get(); // Assign, don't redeclare
-            if (stack == null || stack.isEmpty()) {
-                // Clean up ThreadLocal even if stack is empty
-                ACTIVE_SPANS_STACK.remove();
+            SpanStack stack = ACTIVE_SPANS_STACK.get();
+            if (stack.isEmpty()) {
                 return;
             }
 
-            info = stack.pop();
-            span = info.span;
-            scope = info.scope;
+            span = stack.topSpan();
+            scope = stack.topScope();
+            long startNanos = stack.topStartNanos();
+            int recursionCalls = stack.topRecursionCalls();
+            int recursionDepth = stack.topRecursionDepth();
+            SiblingAggregates siblings = stack.topSiblings();
+            try {
+                if (siblings != null && span != null) {
+                    // Summaries end before their parent; the parent's scope is still current here
+                    siblings.emit(Context.current());
+                }
+            } finally {
+                // Pop even if a summary fails, or every later exit on this thread is off by one
+                stack.pop();
+            }
 
             if (span == null) {
                 if (scope != null) {
@@ -335,93 +334,254 @@ public class SimplifiedGenericMethodAdvice {
                 return;
             }
 
-            try {
-                // *** CONFIGURABLE EXCEPTION CAPTURE ***
-                if (thrown != null && ERROR_CAPTURE_ENABLED) {
-                    handleException(span, thrown, methodName);
-                } else if (thrown != null) {
-                    // Minimal error info if capture is disabled
-                    span.setStatus(StatusCode.ERROR, "Error (capture disabled)");
-                    span.setAttribute("error", true);
-                    span.setAttribute("ai.operation.isSuccessful", false);
-                } else {
-                    span.setStatus(StatusCode.OK);
-                    span.setAttribute("ai.operation.isSuccessful", true);
-                }
+            if (recursionCalls > 0 && span.isRecording()) {
+                span.setAttribute(RECURSION_DEPTH, recursionDepth);
+                span.setAttribute(RECURSION_CALLS, recursionCalls);
+            }
+            endSpan(methodId, span, scope, startNanos, thrown);
 
-                // Add duration info (in milliseconds)
-                long durationMs = System.currentTimeMillis() - info.startTimeMs;
-                span.setAttribute("duration_ms", durationMs);
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Critical error in onExit for method " + MethodRegistry.nameOf(methodId) + ": " + t.getMessage());
 
-            } catch (Exception spanException) {
-                // Don't let span operations fail silently
-                if (VERBOSE_LOGGING) {
-                    System.err.println("[CustomAgent] Error updating span for " + methodName + ": " + spanException.getMessage());
-                }
-            } finally {
-                // ALWAYS clean up resources
-                try {
-                    if (span != null) span.end();
-                } catch (Exception e) {
-                    if (VERBOSE_LOGGING) {
-                        System.err.println("[CustomAgent] Error ending span: " + e.getMessage());
-                    }
-                }
+            // Emergency cleanup
+            abandonSpan(span, scope);
+        }
+    }
 
-                try {
-                    if (scope != null) scope.close();
-                } catch (Exception e) {
-                    if (VERBOSE_LOGGING) {
-                        System.err.println("[CustomAgent] Error closing scope: " + e.getMessage());
-                    }
+    // A virtual thread's call: the span travels to exit() in the returned frame. What the
+    // stack gives platform threads - recursion folding and the depth limit - comes from
+    // the RecursionFrames in the context
+    private static Object enterLocal(int methodId) {
+        Span span = null;
+        Scope scope = null;
+        try {
+            Context context = Context.current();
+            if (RECURSION_FOLDING_ENABLED) {
+                RecursionFrame outer = RecursionFrame.find(context, methodId);
+                if (outer != null) {
+                    outer.enterRecursion();
+                    return outer;
                 }
+            }
+            if (RecursionFrame.pathDepth(context) >= MAX_STACK_DEPTH) {
+                return NO_SPAN_FRAME;
+            }
+            span = startSpan(methodId, context, 0L);
+            if (span == null) {
+                return NO_SPAN_FRAME;
+            }
+            Context spanContext = RecursionFrame.push(context.with(span), methodId);
+            scope = spanContext.makeCurrent();
+            return new LocalFrame(span, scope, span.isRecording() ? System.nanoTime() : 0L,
+                    RecursionFrame.current(spanContext));
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] ERROR in onEnter for method " + MethodRegistry.nameOf(methodId) + ": " + t.getMessage());
+            abandonSpan(span, scope);
+            return NO_SPAN_FRAME;
+        }
+    }
+
+    private static final class LocalFrame {
+        private final Span span;
+        private final Scope scope;
+        private final long startNanos;
+        private final RecursionFrame recursion;
+
+        private LocalFrame(Span span, Scope scope, long startNanos, RecursionFrame recursion) {
+            this.span = span;
+            this.scope = scope;
+            this.startNanos = startNanos;
+            this.recursion = recursion;
+        }
+    }
 
-                // Clean up ThreadLocal if stack is empty
-                // Use existing stack variable, don't redeclare
-                if (stack == null || stack.isEmpty()) {
-                    ACTIVE_SPANS_STACK.remove();
+    // ============= SHARED SPAN LIFECYCLE (used by every advice mode) =============
+
+    /**
+     * Starts the span for the given method as a child of the current context.
+     * The span is not made current; returns null if no tracer is available, or if the
+     * parent is not sampled - the current context already carries the unsampled parent,
+     * so nothing needs to be started for the trace to propagate.
+     * A root span whose trace the sampler drops comes back non-recording and bare.
+     */
+    public static Span startSpan(int methodId) {
+        return startSpan(methodId, Context.current(), 0L);
+    }
+
+    /**
+     * Same as {@link #startSpan(int)} with an explicit parent context, back-dated to
+     * startEpochNanos when non-zero.
+     */
+    public static Span startSpan(int methodId, Context currentContext, long startEpochNanos) {
+        MethodGovernor.recordCall(MethodRegistry.get(methodId));
+        return startSpanForCountedCall(methodId, currentContext, startEpochNanos);
+    }
+
+    /**
+     * Same as {@link #startSpan(int, Context, long)} for a call the advice has already
+     * counted with MethodGovernor.recordCall, e.g. on entry of a lazy frame.
+     */
+    public static Span startSpanForCountedCall(int methodId, Context currentContext, long startEpochNanos) {
+        MethodDescriptor method = MethodRegistry.get(methodId);
+
+        // Resolved once and cached; refreshed only if the global instance changes
+        Tracer tracer = TracerHolder.get();
+        if (tracer == null) {
+            return null;
+        }
+
+        // Important: the parent context might contain a span from the OTel agent
+        SpanContext parentSpanContext = Span.fromContext(currentContext).getSpanContext();
+
+        // With entry points, the methods below them are only traced inside a trace
+        if (method.belowEntryPoint && !parentSpanContext.isValid()) {
+            return null;
+        }
+
+        if (SAMPLING_FAST_PATH_ENABLED && !parentSpanContext.isValid()) {
+            // Root: let the sampler decide before paying for any attributes
+            Span span = newSpanBuilder(tracer, method, currentContext, startEpochNanos).startSpan();
+            if (span.isRecording()) {
+                span.setAllAttributes(method.constantAttributes);
+                span.setAttribute(AI_OPERATION_PARENT_ID, "");
+                setTraceIdAttributes(span);
+                if (TraceBudget.ENABLED) {
+                    TraceBudget.open(span);
                 }
             }
-//            System.out.println("[GenericMethodAdvice] ENTER: " + methodName +
-//                    " --> traceId=" + span.getSpanContext().getTraceId() +
-//                    ", spanId=" + span.getSpanContext().getSpanId());
+            return span;
+        }
 
-        } catch (Throwable t) {
-            System.err.println("[CustomAgent] Critical error in onExit for " + methodName + ": " + t.getMessage());
+        if (SAMPLING_FAST_PATH_ENABLED && !parentSpanContext.isSampled()) {
+            // Parent-based sampling would drop this span anyway
+            return null;
+        }
 
-            // Emergency cleanup
-            if (span != null) {
-                try { span.end(); } catch (Exception e) { /* ignore */ }
-            }
-            if (scope != null) {
-                try { scope.close(); } catch (Exception e) { /* ignore */ }
+        // Over the trace's span budget: don't start the span, the parent stays current
+        TraceBudget budget = null;
+        if (TraceBudget.ENABLED && parentSpanContext.isValid()) {
+            budget = TraceBudget.forTrace(parentSpanContext.getTraceId());
+            if (budget != null && !budget.tryAcquire()) {
+                return null;
             }
+        }
 
-            // Emergency ThreadLocal cleanup
-            try {
-                ACTIVE_SPANS_STACK.remove();
-            } catch (Exception cleanup) {
-                // Ignore cleanup errors
-            }
+        // Only a valid parent contributes a parent ID for App Insights correlation
+        String parentId = parentSpanContext.isValid() ? parentSpanContext.getSpanId() : "";
+
+        // Create builder with proper parent context and the pre-built constant attributes
+        Span span = newSpanBuilder(tracer, method, currentContext, startEpochNanos)
+                .setAllAttributes(method.constantAttributes)
+                .setAttribute(AI_OPERATION_PARENT_ID, parentId)
+                .startSpan();
+
+        setTraceIdAttributes(span);
+        if (TraceBudget.ENABLED && budget == null && span.isRecording()) {
+            // First span of this trace here, e.g. under a remote parent: it becomes the local root
+            TraceBudget.open(span);
+        }
+        return span;
+    }
+
+    /**
+     * Span builder for the method under the given parent, back-dated when startEpochNanos is non-zero.
+     */
+    public static SpanBuilder newSpanBuilder(Tracer tracer, MethodDescriptor method, Context parentContext, long startEpochNanos) {
+        SpanBuilder builder = tracer.spanBuilder(method.spanName)
+                .setSpanKind(SpanKind.INTERNAL)
+                .setParent(parentContext);
+        if (startEpochNanos != 0L) {
+            builder.setStartTimestamp(startEpochNanos, TimeUnit.NANOSECONDS);
         }
-        finally {
+        return builder;
+    }
+
+    public static void setTraceIdAttributes(Span span) {
+        String traceId = span.getSpanContext().getTraceId();
+        span.setAttribute(TRACE_ID, traceId);
+        span.setAttribute(AI_OPERATION_ID, traceId);
+    }
 
-            // Ensures ThreadLocal is always cleaned up
+    /**
+     * Records the outcome of the call on the span, then ends the span and closes its scope.
+     */
+    public static void endSpan(int methodId, Span span, Scope scope, long startNanos, Throwable thrown) {
+        try {
+            // Dropped by the sampler: nothing will be exported, so skip status, timing and exception work
+            if (span.isRecording()) {
+                long durationNanos = System.nanoTime() - startNanos;
+                MethodGovernor.recordDuration(MethodRegistry.get(methodId), durationNanos);
+                recordOutcome(methodId, span, TimeUnit.NANOSECONDS.toMillis(durationNanos), thrown);
+                if (TraceBudget.ENABLED) {
+                    TraceBudget.close(span);
+                }
+            }
+        } finally {
+            // ALWAYS clean up resources
             try {
-                Deque<SpanInfo> tvstack = ACTIVE_SPANS_STACK.get();
-                if (tvstack == null || tvstack.isEmpty()) {
-                    ACTIVE_SPANS_STACK.remove(); // Prevent memory leak
+                span.end();
+            } catch (Exception e) {
+                if (VERBOSE_LOGGING) {
+                    System.err.println("[CustomAgent] Error ending span: " + e.getMessage());
                 }
+            }
+
+            try {
+                if (scope != null) scope.close();
             } catch (Exception e) {
-                // Ignore any errors in finally
+                if (VERBOSE_LOGGING) {
+                    System.err.println("[CustomAgent] Error closing scope: " + e.getMessage());
+                }
             }
         }
     }
 
+    /**
+     * Sets status, error details and duration on a recording span. Never throws.
+     */
+    public static void recordOutcome(int methodId, Span span, long durationMs, Throwable thrown) {
+        try {
+            // *** CONFIGURABLE EXCEPTION CAPTURE ***
+            if (thrown != null && ERROR_CAPTURE_ENABLED) {
+                handleException(span, thrown, MethodRegistry.get(methodId));
+            } else if (thrown != null) {
+                // Minimal error info if capture is disabled
+                span.setStatus(StatusCode.ERROR, "Error (capture disabled)");
+                span.setAttribute(ERROR, true);
+                span.setAttribute(AI_OPERATION_IS_SUCCESSFUL, false);
+            } else {
+                span.setStatus(StatusCode.OK);
+                span.setAttribute(AI_OPERATION_IS_SUCCESSFUL, true);
+            }
+
+            // Add duration info (in milliseconds)
+            span.setAttribute(DURATION_MS, durationMs);
+
+        } catch (Exception spanException) {
+            // Don't let span operations fail silently
+            if (VERBOSE_LOGGING) {
+                System.err.println("[CustomAgent] Error updating span for method " + MethodRegistry.nameOf(methodId) + ": " + spanException.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Best-effort cleanup of a span and scope after an advice failure.
+     */
+    public static void abandonSpan(Span span, Scope scope) {
+        if (span != null) {
+            try { span.end(); } catch (Exception e) { /* ignore */ }
+        }
+        if (scope != null) {
+            try { scope.close(); } catch (Exception e) { /* ignore */ }
+        }
+    }
+
     /**
      * Handle exception capture with rate limiting and sampling
      */
-    public static void handleException(Span span, Throwable thrown, String methodName) {
+    public static void handleException(Span span, Throwable thrown, MethodDescriptor method) {
+        String methodName = method.spanName;
         String exceptionType = thrown.getClass().getSimpleName();
 
         // Skip ignored exceptions
@@ -443,11 +603,10 @@ public class SimplifiedGenericMethodAdvice {
             return;
         }
 
-        // Check rate limiting
-        String errorKey = methodName + ":" + exceptionType;
-        long currentTime = System.currentTimeMillis();
+        // Check rate limiting, per method and exception class
+        ErrorRateLimiter.Bucket bucket = method.errorLimiter.bucketFor(thrown.getClass().getName());
 
-        if (shouldCreateDetailedErrorSpan(errorKey, currentTime)) {
+        if (bucket.tryAcquire()) {
             // Create detailed error span
             createDetailedErrorSpan(span, thrown, methodName);
 
@@ -456,7 +615,7 @@ public class SimplifiedGenericMethodAdvice {
             }
         } else {
             // Rate limited - minimal error info
-            int errorCount = ERROR_COUNTS.merge(errorKey, 1, Integer::sum);
+            long errorCount = bucket.recordSuppressed();
             span.setStatus(StatusCode.ERROR, "Error (rate limited, count: " + errorCount + ")");
             span.setAttribute("error", true);
             span.setAttribute("error.type", exceptionType);
@@ -475,9 +634,9 @@ public class SimplifiedGenericMethodAdvice {
             errorMessage = thrown.getClass().getSimpleName() + " (no message)";
         }
 
-        // Set span status and record exception
+        // Set span status and record a bounded exception event (not the SDK's full stack trace)
         span.setStatus(StatusCode.ERROR, errorMessage);
-        span.recordException(thrown);
+        String stackTrace = ExceptionCapture.recordException(span, thrown, errorMessage);
 
         // Add comprehensive error attributes for Azure Application Insights
         span.setAttribute("error", true);
@@ -485,11 +644,7 @@ public class SimplifiedGenericMethodAdvice {
         span.setAttribute("error.message", errorMessage);
         span.setAttribute("ai.operation.isSuccessful", false);
 
-        // Add LIMITED stack trace (200-300 characters max)
-        String stackTrace = getStackTraceString(thrown);
-        if (stackTrace.length() > MAX_STACK_LENGTH) {
-            stackTrace = stackTrace.substring(0, MAX_STACK_LENGTH) + "... (truncated)";
-        }
+        // Add LIMITED stack trace (MAX_STACK_LENGTH chars max), cached per exception fingerprint
         span.setAttribute("error.stack", stackTrace);
     }
 
@@ -500,27 +655,9 @@ public class SimplifiedGenericMethodAdvice {
         if (throwable == null) return "";
 
         try {
-            java.io.StringWriter sw = new java.io.StringWriter();
-            java.io.PrintWriter pw = new java.io.PrintWriter(sw);
-            throwable.printStackTrace(pw);
-            String fullTrace = sw.toString();
-
-            // Return only first few lines of stack trace
-            String[] lines = fullTrace.split("\n");
-            StringBuilder result = new StringBuilder();
-            int maxLines = 3; // Only first 3 lines of stack trace
-
-            for (int i = 0; i < Math.min(maxLines, lines.length); i++) {
-                if (i > 0) result.append("\n");
-                result.append(lines[i]);
-                if (result.length() > MAX_STACK_LENGTH) {
-                    break;
-                }
-            }
-
-            return result.toString();
+            return ExceptionCapture.stackString(throwable);
         } catch (Exception e) {
             return throwable.getClass().getName() + ": " + throwable.getMessage();
         }
     }
-}
\ No newline at end of file
+}
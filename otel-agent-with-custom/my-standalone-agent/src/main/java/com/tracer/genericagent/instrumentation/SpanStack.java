@@ -0,0 +1,252 @@
+package com.tracer.genericagent.instrumentation;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-thread stack of active spans backed by parallel arrays, so that pushing and
+ * popping a frame does not allocate. Slots are cleared on pop so a parked thread
+ * never pins finished spans or contexts. Every stack is registered with
+ * SpanStackRegistry so that spans leaked on it can be ended from outside the thread;
+ * the frames of those spans are unwound by the owning thread itself (see unwindLeaked).
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class SpanStack {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] methodIds = new int[INITIAL_CAPACITY];
+    private Span[] spans = new Span[INITIAL_CAPACITY];
+    private Scope[] scopes = new Scope[INITIAL_CAPACITY];
+    private long[] startNanos = new long[INITIAL_CAPACITY];
+    // Recursive calls folded into a frame: total, currently active, and deepest nesting seen
+    private int[] recursionCalls = new int[INITIAL_CAPACITY];
+    private int[] recursionActive = new int[INITIAL_CAPACITY];
+    private int[] recursionMaxActive = new int[INITIAL_CAPACITY];
+    // Calls that only count towards their parent's sibling statistics, and everything under them
+    private boolean[] summarized = new boolean[INITIAL_CAPACITY];
+    // Sibling statistics of each frame's children, created on first use and reused
+    private SiblingAggregates[] siblings = new SiblingAggregates[INITIAL_CAPACITY];
+    private int size;
+    // Topmost span the leak sweeper ended, until the owning thread has unwound its frame
+    private final AtomicReference<Span> leakedTop = new AtomicReference<>();
+
+    /**
+     * Pushes a frame. A null span marks a call that was not traced, which keeps
+     * enter/exit pairing intact.
+     */
+    public void push(int methodId, Span span, Scope scope, long entryNanos) {
+        if (size == spans.length) {
+            int capacity = size * 2;
+            methodIds = Arrays.copyOf(methodIds, capacity);
+            spans = Arrays.copyOf(spans, capacity);
+            scopes = Arrays.copyOf(scopes, capacity);
+            startNanos = Arrays.copyOf(startNanos, capacity);
+            recursionCalls = Arrays.copyOf(recursionCalls, capacity);
+            recursionActive = Arrays.copyOf(recursionActive, capacity);
+            recursionMaxActive = Arrays.copyOf(recursionMaxActive, capacity);
+            summarized = Arrays.copyOf(summarized, capacity);
+            siblings = Arrays.copyOf(siblings, capacity);
+        }
+        methodIds[size] = methodId;
+        spans[size] = span;
+        scopes[size] = scope;
+        startNanos[size] = entryNanos;
+        size++;
+    }
+
+    /**
+     * Pushes a frame for a call that is only counted in its parent's sibling statistics,
+     * or that runs under such a call.
+     */
+    public void pushSummarized(int methodId, long entryNanos) {
+        push(methodId, null, null, entryNanos);
+        summarized[size - 1] = true;
+    }
+
+    public boolean isSummarized(int index) {
+        return summarized[index];
+    }
+
+    public Span spanAt(int index) {
+        return spans[index];
+    }
+
+    /**
+     * Sibling statistics for the children of the frame at index.
+     */
+    public SiblingAggregates siblingsAt(int index) {
+        SiblingAggregates aggregates = siblings[index];
+        if (aggregates == null) {
+            aggregates = new SiblingAggregates();
+            siblings[index] = aggregates;
+        }
+        return aggregates;
+    }
+
+    /**
+     * Sibling statistics of the top frame, or null if none of its children were aggregated.
+     */
+    public SiblingAggregates topSiblings() {
+        SiblingAggregates aggregates = siblings[size - 1];
+        return aggregates == null || aggregates.isEmpty() ? null : aggregates;
+    }
+
+    /**
+     * Index of the frame of this method on the current path, or -1. Recursive calls are
+     * folded rather than pushed, so this is the outermost call of the method.
+     */
+    public int indexOf(int methodId) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (methodIds[i] == methodId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts a recursive call folded into the frame at index.
+     */
+    public void enterRecursion(int index) {
+        recursionCalls[index]++;
+        int active = ++recursionActive[index];
+        if (active > recursionMaxActive[index]) {
+            recursionMaxActive[index] = active;
+        }
+    }
+
+    public void exitRecursion(int index) {
+        recursionActive[index]--;
+    }
+
+    public Span topSpan() {
+        return spans[size - 1];
+    }
+
+    public Scope topScope() {
+        return scopes[size - 1];
+    }
+
+    public long topStartNanos() {
+        return startNanos[size - 1];
+    }
+
+    /**
+     * Recursive calls folded into the top frame.
+     */
+    public int topRecursionCalls() {
+        return recursionCalls[size - 1];
+    }
+
+    /**
+     * Deepest recursion reached under the top frame, counting the frame itself.
+     */
+    public int topRecursionDepth() {
+        return recursionMaxActive[size - 1] + 1;
+    }
+
+    public void pop() {
+        size--;
+        spans[size] = null;
+        scopes[size] = null;
+        recursionCalls[size] = 0;
+        recursionActive[size] = 0;
+        recursionMaxActive[size] = 0;
+        summarized[size] = false;
+        if (siblings[size] != null) {
+            siblings[size].reset();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Whether the leak sweeper has ended spans whose frames are still on this stack.
+     */
+    public boolean hasLeaked() {
+        return leakedTop.get() != null;
+    }
+
+    /**
+     * Unwinds the frames whose spans the leak sweeper ended, once no frame pushed after
+     * them is left above: closes their scopes from the top down, popping each frame, and
+     * does the same for the frames below, which are older still. Returns whether it
+     * unwound. Only the owning thread may call this, as it closes scopes.
+     */
+    public boolean unwindLeaked() {
+        Span leaked = leakedTop.get();
+        if (leaked == null) {
+            return false;
+        }
+        int index = size - 1;
+        while (index >= 0 && spans[index] != leaked) {
+            index--;
+        }
+        if (index < 0) {
+            // Already popped by its own exit
+            leakedTop.compareAndSet(leaked, null);
+            return false;
+        }
+        if (index != size - 1) {
+            // Calls above it are still running
+            return false;
+        }
+        while (size > 0) {
+            Scope scope = scopes[size - 1];
+            if (scope != null) {
+                try { scope.close(); } catch (Exception e) { /* ignore */ }
+            }
+            pop();
+        }
+        leakedTop.compareAndSet(leaked, null);
+        return true;
+    }
+
+    /**
+     * Ends the recording spans on this stack that have been open for at least maxAgeNanos,
+     * marked span.leaked, and returns how many were ended. Called by the leak sweeper from
+     * another thread: it reads a snapshot of the arrays and never pops frames or closes
+     * scopes, which only the owning thread may do; it marks the topmost ended span for
+     * the owning thread to unwind.
+     */
+    int endLeakedSpans(long nowNanos, long maxAgeNanos) {
+        Span[] spanSnapshot = spans;
+        long[] startSnapshot = startNanos;
+        int count = Math.min(size, Math.min(spanSnapshot.length, startSnapshot.length));
+        int ended = 0;
+        Span top = null;
+        for (int i = 0; i < count; i++) {
+            Span span = spanSnapshot[i];
+            if (span == null || !span.isRecording()) {
+                continue;
+            }
+            // SDK spans know their own age; the start slot may be stale when read from another thread
+            long ageNanos = span instanceof ReadableSpan
+                    ? ((ReadableSpan) span).getLatencyNanos()
+                    : nowNanos - startSnapshot[i];
+            if (ageNanos < maxAgeNanos) {
+                // Frames above were pushed later, so they are younger still
+                break;
+            }
+            span.setAttribute(SpanStackRegistry.SPAN_LEAKED, true);
+            span.end();
+            ended++;
+            top = span;
+        }
+        if (top != null) {
+            leakedTop.set(top);
+        }
+        return ended;
+    }
+}
@@ -0,0 +1,144 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of every thread's SpanStack, so that leaked spans can be found from outside
+ * the thread that owns them. A stack is registered when its thread first runs the stack
+ * advice, with the thread held through a WeakReference. Every span.leak.sweep.interval.ms
+ * the sweeper ends the spans left on the stack of a thread that died mid-trace, and the
+ * spans on live threads that have been open longer than span.leak.max.age.ms, which
+ * usually means an exit advice was skipped.
+ * Scopes are only ever closed by their own thread, since closing a scope restores the
+ * context of whichever thread calls close: a dead thread's scopes are dropped with its
+ * stack, and a live thread unwinds the frames of its ended spans the next time it enters
+ * the advice with nothing running above them (see SpanStack.unwindLeaked).
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class SpanStackRegistry {
+
+    public static final long MAX_SPAN_AGE_MS =
+            ConfigReader.getLongProperty("span.leak.max.age.ms", 1800000); // 30 minutes
+    public static final long SWEEP_INTERVAL_MS =
+            ConfigReader.getLongProperty("span.leak.sweep.interval.ms", 60000);
+
+    public static final AttributeKey<Boolean> SPAN_LEAKED = AttributeKey.booleanKey("span.leaked");
+
+    private static final AttributeKey<String> REASON = AttributeKey.stringKey("reason");
+    private static final Attributes THREAD_ENDED = Attributes.of(REASON, "thread_ended");
+    private static final Attributes MAX_AGE = Attributes.of(REASON, "max_age");
+
+    private static final ConcurrentLinkedQueue<Entry> STACKS = new ConcurrentLinkedQueue<>();
+
+    private static final LongAdder LEAKED_ON_DEAD_THREADS = new LongAdder();
+    private static final LongAdder LEAKED_BY_AGE = new LongAdder();
+
+    private static boolean started;
+
+    private SpanStackRegistry() {}
+
+    /**
+     * Creates and registers the SpanStack of the current thread. Used as the initial
+     * value of SimplifiedGenericMethodAdvice.ACTIVE_SPANS_STACK.
+     */
+    public static SpanStack register() {
+        SpanStack stack = new SpanStack();
+        STACKS.add(new Entry(Thread.currentThread(), stack));
+        return stack;
+    }
+
+    /**
+     * Starts the sweeper thread and registers its metric. Only the first call has any effect.
+     */
+    public static synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        try {
+            Meter meter = GlobalOpenTelemetry.getMeter("generic-agent-meter");
+            meter.counterBuilder("agent.spans.leaked")
+                    .setDescription("Spans ended by the leak sweeper instead of their method exit")
+                    .buildWithCallback(obs -> {
+                        obs.record(LEAKED_ON_DEAD_THREADS.sum(), THREAD_ENDED);
+                        obs.record(LEAKED_BY_AGE.sum(), MAX_AGE);
+                    });
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Could not register leaked span metric: " + t.getMessage());
+        }
+
+        Thread sweeperThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(SWEEP_INTERVAL_MS);
+                    sweep();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Throwable t) {
+                    System.err.println("[CustomAgent] Span sweep failed: " + t.getMessage());
+                }
+            }
+        }, "custom-agent-span-sweeper");
+        sweeperThread.setDaemon(true);
+        sweeperThread.start();
+    }
+
+    /**
+     * Number of registered stacks, one per live thread that has run the stack advice.
+     */
+    public static int size() {
+        return STACKS.size();
+    }
+
+    /**
+     * One pass over every registered stack; returns the number of spans ended.
+     */
+    static int sweep() {
+        long now = System.nanoTime();
+        long maxAgeNanos = MAX_SPAN_AGE_MS > 0 ? MAX_SPAN_AGE_MS * 1_000_000L : Long.MAX_VALUE;
+        int onDeadThreads = 0;
+        int byAge = 0;
+
+        for (Iterator<Entry> it = STACKS.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            Thread owner = entry.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                // The thread is gone, so nothing will ever pop these frames
+                it.remove();
+                onDeadThreads += entry.stack.endLeakedSpans(now, 0L);
+            } else if (!entry.stack.isEmpty()) {
+                byAge += entry.stack.endLeakedSpans(now, maxAgeNanos);
+            }
+        }
+
+        LEAKED_ON_DEAD_THREADS.add(onDeadThreads);
+        LEAKED_BY_AGE.add(byAge);
+        if (onDeadThreads + byAge > 0) {
+            System.err.println("[CustomAgent] Span sweeper ended " + onDeadThreads +
+                    " span(s) left by finished threads and " + byAge +
+                    " span(s) open longer than " + MAX_SPAN_AGE_MS + " ms");
+        }
+        return onDeadThreads + byAge;
+    }
+
+    private static final class Entry {
+        final WeakReference<Thread> owner;
+        final SpanStack stack;
+
+        Entry(Thread owner, SpanStack stack) {
+            this.owner = new WeakReference<>(owner);
+            this.stack = stack;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-trace span budget, enforced when spans are started rather than in the span
+ * processor. The first span this agent starts in a trace - the local root, which is
+ * the trace root unless the trace came from another process or agent - opens a budget
+ * of trace.memory.max.spans.per.trace spans, keyed by trace ID. Once it is used up,
+ * further spans of the trace are not started at all, and when the local root ends it
+ * records how many were suppressed in trace.spans.suppressed. While
+ * trace.memory.max.pending.traces budgets are open, new traces go without one.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class TraceBudget {
+
+    public static final boolean ENABLED =
+            ConfigReader.getBooleanProperty("trace.budget.enabled", true);
+    public static final int MAX_SPANS_PER_TRACE = ConfigReader.getMaxSpansPerTrace();
+
+    // Traces with an open budget; a bound in case local roots are never ended
+    private static final int MAX_TRACKED_TRACES = ConfigReader.getMaxPendingTraces();
+    // Budgets whose root ended without close are purged at most this often, and only when full
+    private static final long PURGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final AtomicLong LAST_PURGE_NANOS = new AtomicLong(System.nanoTime() - PURGE_INTERVAL_NANOS);
+
+    public static final AttributeKey<Long> SPANS_SUPPRESSED = AttributeKey.longKey("trace.spans.suppressed");
+
+    private static final ConcurrentHashMap<String, TraceBudget> BUDGETS = new ConcurrentHashMap<>();
+
+    private final Span root;
+    private final AtomicInteger spans = new AtomicInteger(1);
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private TraceBudget(Span root) {
+        this.root = root;
+    }
+
+    /**
+     * Budget of the trace with this ID, or null if no local root has opened one.
+     */
+    public static TraceBudget forTrace(String traceId) {
+        return BUDGETS.get(traceId);
+    }
+
+    /**
+     * Opens the budget of a trace, with this span as its local root and first span.
+     * Does nothing while the map is full: every span of a trace without a budget comes
+     * here, so a full map costs them a size check, and the scan for budgets to drop runs
+     * on one of them at most once per PURGE_INTERVAL.
+     */
+    public static void open(Span root) {
+        if (BUDGETS.size() >= MAX_TRACKED_TRACES) {
+            if (!purgeDue()) {
+                return;
+            }
+            // Drop budgets whose root was ended without going through close, e.g. by the leak sweeper
+            BUDGETS.values().removeIf(budget -> !budget.root.isRecording());
+            if (BUDGETS.size() >= MAX_TRACKED_TRACES) {
+                return;
+            }
+        }
+        BUDGETS.putIfAbsent(root.getSpanContext().getTraceId(), new TraceBudget(root));
+    }
+
+    // Whether this caller won the next purge
+    private static boolean purgeDue() {
+        long now = System.nanoTime();
+        long last = LAST_PURGE_NANOS.get();
+        return now - last >= PURGE_INTERVAL_NANOS && LAST_PURGE_NANOS.compareAndSet(last, now);
+    }
+
+    /**
+     * Closes the budget if this span is its local root, recording the suppressed count on it.
+     * Called just before a recording span ends.
+     */
+    public static void close(Span span) {
+        String traceId = span.getSpanContext().getTraceId();
+        TraceBudget budget = BUDGETS.get(traceId);
+        if (budget == null || budget.root != span) {
+            return;
+        }
+        BUDGETS.remove(traceId, budget);
+        long count = budget.suppressed.get();
+        if (count > 0) {
+            span.setAttribute(SPANS_SUPPRESSED, count);
+        }
+    }
+
+    /**
+     * Takes one span from the budget; counts the span as suppressed if none is left.
+     */
+    public boolean tryAcquire() {
+        if (spans.get() >= MAX_SPANS_PER_TRACE || spans.incrementAndGet() > MAX_SPANS_PER_TRACE) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+}
@@ -115,7 +115,8 @@ public class TraceFilteringSpanProcessor implements SpanProcessor {
             // Extract span data
             SpanContext spanContext = span.getSpanContext();
             String traceId = spanContext.getTraceId();
-            long currentTimeMs = System.currentTimeMillis();
+            // When the span ended: behind AsyncEndSpanProcessor this runs later, on the drainer
+            long currentTimeMs = AsyncEndSpanProcessor.endTimeMillis();
 
             // Check span status for errors
             boolean hasError = spanContext.getTraceFlags().isSampled() &&
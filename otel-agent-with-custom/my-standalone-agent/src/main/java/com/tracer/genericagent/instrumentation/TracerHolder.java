@@ -0,0 +1,100 @@
+package com.tracer.genericagent.instrumentation;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Tracer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Holds the agent's Tracer behind a MutableCallSite. Once resolved, the call site
+ * target is a constant handle, so the JIT folds {@link #get()} into the caller like
+ * a static final. The target is only swapped when the GlobalOpenTelemetry instance
+ * changes, which deoptimizes the callers once: the agent refreshes it right after
+ * registering its SDK, and a background thread checks every tracer.refresh.interval.ms
+ * for an instance someone else installed, as GlobalOpenTelemetry has no change hook.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class TracerHolder {
+
+    private static final String INSTRUMENTATION_NAME = "generic-agent-tracer";
+    private static final String INSTRUMENTATION_VERSION = "1.0.0";
+
+    private static final MutableCallSite CALL_SITE =
+            new MutableCallSite(MethodType.methodType(Tracer.class));
+    private static final MethodHandle TRACER = CALL_SITE.dynamicInvoker();
+
+    // The global instance the current tracer was resolved from, null until first use
+    private static volatile OpenTelemetry resolvedFrom;
+
+    static {
+        try {
+            // Resolve lazily: touching GlobalOpenTelemetry before the SDK is registered would pin a no-op
+            CALL_SITE.setTarget(MethodHandles.lookup().findStatic(
+                    TracerHolder.class, "refresh", MethodType.methodType(Tracer.class)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private TracerHolder() {}
+
+    /**
+     * Hot path: a single call-site read that the JIT treats as a constant.
+     */
+    public static Tracer get() {
+        try {
+            return (Tracer) TRACER.invokeExact();
+        } catch (Throwable t) {
+            return refresh();
+        }
+    }
+
+    /**
+     * Re-resolves the tracer from GlobalOpenTelemetry and installs it as the new constant.
+     */
+    public static synchronized Tracer refresh() {
+        OpenTelemetry global = GlobalOpenTelemetry.get();
+        Tracer tracer = resolve(global);
+        resolvedFrom = global;
+        CALL_SITE.setTarget(MethodHandles.constant(Tracer.class, tracer));
+        MutableCallSite.syncAll(new MutableCallSite[] {CALL_SITE});
+        return tracer;
+    }
+
+    /**
+     * Refreshes only if another agent replaced the global instance since we resolved.
+     * A no-op before first use, so it never forces GlobalOpenTelemetry initialization.
+     */
+    public static void refreshIfChanged() {
+        OpenTelemetry previous = resolvedFrom;
+        if (previous != null && GlobalOpenTelemetry.get() != previous) {
+            if (SimplifiedGenericMethodAdvice.VERBOSE_LOGGING) {
+                System.err.println("[CustomAgent] GlobalOpenTelemetry changed, refreshing tracer");
+            }
+            refresh();
+        }
+    }
+
+    private static Tracer resolve(OpenTelemetry global) {
+        try {
+            Tracer tracer = global.getTracer(INSTRUMENTATION_NAME, INSTRUMENTATION_VERSION);
+            if (tracer == null) {
+                if (SimplifiedGenericMethodAdvice.VERBOSE_LOGGING) {
+                    System.err.println("[CustomAgent] Received null tracer, using fallback");
+                }
+                return GlobalOpenTelemetry.getTracerProvider().get("generic-agent-fallback");
+            }
+            return tracer;
+        } catch (Exception e) {
+            if (SimplifiedGenericMethodAdvice.VERBOSE_LOGGING) {
+                System.err.println("[CustomAgent] Error getting global tracer: " + e.getMessage());
+            }
+            // Create a fallback tracer using TracerProvider
+            return GlobalOpenTelemetry.getTracerProvider().get("generic-agent-fallback");
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.utility.JavaModule;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of woven class bytes, so a restarted JVM loads matching classes
+ * without ByteBuddy resolving and weaving them again. Enabled by setting
+ * transform.cache.dir.
+ *
+ * Entries live in a namespace directory named after a hash of the agent version, the
+ * agent jar, the ByteBuddy and Java versions and the install plan's fingerprint, so
+ * any change to these starts a new, empty namespace. Within it an entry is keyed by
+ * a SHA-256 of the class name and the original class bytes, and carries a CRC of the
+ * woven bytes; an entry that fails the check is deleted and the class is woven again.
+ * A class ByteBuddy left unchanged gets an empty entry, so later boots return it as is
+ * without matching it again; one whose transformation failed gets no entry. Unchanged
+ * classes are counted apart from woven ones in the report, so they don't lower the
+ * mean weave time.
+ *
+ * Woven bytes contain MethodRegistry IDs as constants. The namespace therefore keeps
+ * a manifest of every registered method in ID order, which is registered again on
+ * boot before any class is served, so the IDs in cached classes stay valid. A JVM
+ * holds a lock on the namespace; a second JVM on the same directory runs uncached.
+ *
+ * Redefinitions and retransformations are always woven, since their result can
+ * depend on state such as the governor's disabled methods.
+ */
+public final class TransformCache implements AgentBuilder.TransformerDecorator {
+
+    public static final String CACHE_DIR = ConfigReader.getProperty("transform.cache.dir", "");
+
+    private static final String MANIFEST = "methods.idx";
+    private static final String LOCK = ".lock";
+    private static final String ENTRY_SUFFIX = ".class";
+    private static final int MAGIC = 0x54434331;
+    private static final int HEADER_BYTES = 16;
+
+    // What read returns for an entry recording that the class was left unchanged
+    private static final byte[] UNCHANGED = new byte[0];
+
+    private final Path directory;
+    private final InstallPlan plan;
+
+    // Keeps the namespace lock for the lifetime of the JVM
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    // Set once the instrumentation rules change at runtime and no longer match the namespace
+    private volatile boolean bypassed;
+
+    // Number of MethodRegistry IDs already written to the manifest
+    private int manifestSize;
+
+    // Binary name of the last class whose transformation failed on this thread
+    private final ThreadLocal<String> failedType = new ThreadLocal<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong hitNanos = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong missNanos = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong unchangedHits = new AtomicLong();
+    private final AtomicLong unchangedMisses = new AtomicLong();
+
+    private TransformCache(Path directory, InstallPlan plan, FileChannel lockChannel, FileLock lock) {
+        this.directory = directory;
+        this.plan = plan;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the cache configured by transform.cache.dir, or returns null when it is not
+     * set or cannot be used.
+     */
+    public static TransformCache open(InstallPlan plan) {
+        if (CACHE_DIR.isEmpty()) {
+            return null;
+        }
+        if (EntryPoints.ENABLED) {
+            // Cached classes would skip the weaving that builds the entry points' call graphs
+            System.err.println("[CustomAgent] Transform cache disabled: not supported with entry points");
+            return null;
+        }
+        return open(Paths.get(CACHE_DIR), plan);
+    }
+
+    /**
+     * Opens the cache namespace for the plan under the given root directory, or returns
+     * null when it cannot be used. Must run before any class the plan matches is loaded.
+     */
+    public static TransformCache open(Path root, InstallPlan plan) {
+        FileChannel channel = null;
+        try {
+            Path directory = root.resolve(namespace(plan));
+            Files.createDirectories(directory);
+
+            channel = FileChannel.open(directory.resolve(LOCK),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                System.err.println("[CustomAgent] Transform cache " + directory + " is in use by another JVM, running uncached");
+                channel.close();
+                return null;
+            }
+
+            TransformCache cache = new TransformCache(directory, plan, channel, lock);
+            if (!cache.loadManifest()) {
+                System.err.println("[CustomAgent] Transform cache manifest in " + directory + " does not match, clearing it");
+                cache.clear();
+            }
+            System.out.println("[EnhancedAdvisor] Transform cache: " + directory
+                    + " (" + cache.manifestSize + " methods registered from the manifest)");
+            return cache;
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Transform cache disabled: " + t);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already failing
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public ResettableClassFileTransformer decorate(ResettableClassFileTransformer classFileTransformer) {
+        return new CachingTransformer(classFileTransformer);
+    }
+
+    /**
+     * Listener to install with the cache: it tells a class ByteBuddy left unchanged from
+     * one it failed to transform, which must not be recorded as unchanged.
+     */
+    public AgentBuilder.Listener errorListener() {
+        return new AgentBuilder.Listener.Adapter() {
+            @Override
+            public void onError(String typeName, ClassLoader classLoader, JavaModule module,
+                                boolean loaded, Throwable throwable) {
+                failedType.set(typeName);
+            }
+        };
+    }
+
+    /**
+     * Stops serving and storing entries: the namespace was keyed by the plan at boot, and
+     * classes loaded after a runtime rule change must be woven under the new plan.
+     */
+    public void bypass() {
+        if (!bypassed) {
+            bypassed = true;
+            System.out.println("[EnhancedAdvisor] Transform cache bypassed after an instrumentation rule change");
+        }
+    }
+
+    /**
+     * Releases the namespace lock. Classes transformed afterwards are still cached, but
+     * another JVM may then open the same namespace.
+     */
+    public void close() {
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("[CustomAgent] Could not release transform cache lock: " + e.getMessage());
+        }
+    }
+
+    public void report() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long meanMissNanos = missCount == 0 ? 0 : missNanos.get() / missCount;
+        System.out.println("[EnhancedAdvisor] Transform cache: " + hitCount + " classes served from "
+                + directory + " in " + hitNanos.get() / 1_000_000 + " ms, "
+                + missCount + " woven in " + missNanos.get() / 1_000_000 + " ms, "
+                + unchangedHits.get() + " known unchanged, " + unchangedMisses.get() + " newly found unchanged, "
+                + invalid.get() + " invalid entries dropped");
+        if (hitCount > 0 && missCount > 0) {
+            System.out.println("[EnhancedAdvisor] Transform cache: about "
+                    + (hitCount * meanMissNanos - hitNanos.get()) / 1_000_000
+                    + " ms of weaving saved at the mean weave time of " + meanMissNanos / 1_000 + " us");
+        }
+    }
+
+    private boolean cacheable(ClassLoader loader, String internalName, Class<?> classBeingRedefined) {
+        return !bypassed
+                && loader != null
+                && internalName != null
+                && classBeingRedefined == null
+                // Keyed by name and bytes only: a loader the probe rejected must never be served
+                && plan.getClassLoaderMatcher().accepts(internalName.replace('/', '.'), loader);
+    }
+
+    private byte[] transform(String internalName, byte[] classfileBuffer, Weaver weaver)
+            throws IllegalClassFormatException {
+        long start = System.nanoTime();
+        String key = key(internalName, classfileBuffer);
+        byte[] cached = read(key);
+        if (cached == UNCHANGED) {
+            unchangedHits.incrementAndGet();
+            return null;
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            hitNanos.addAndGet(System.nanoTime() - start);
+            return cached;
+        }
+
+        failedType.remove();
+        byte[] woven = weaver.weave();
+        if (woven != null) {
+            write(key, woven);
+            misses.incrementAndGet();
+            missNanos.addAndGet(System.nanoTime() - start);
+        } else if (!internalName.replace('/', '.').equals(failedType.get())) {
+            write(key, UNCHANGED);
+            unchangedMisses.incrementAndGet();
+        }
+        return woven;
+    }
+
+    // ============= ENTRIES =============
+
+    private byte[] read(String key) {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(entry);
+        } catch (IOException e) {
+            // Not cached yet
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length >= HEADER_BYTES
+                && buffer.getInt() == MAGIC
+                && buffer.getInt() == data.length - HEADER_BYTES) {
+            long crc = buffer.getLong();
+            CRC32 check = new CRC32();
+            check.update(data, HEADER_BYTES, data.length - HEADER_BYTES);
+            if (check.getValue() == crc) {
+                if (data.length == HEADER_BYTES) {
+                    return UNCHANGED;
+                }
+                byte[] woven = new byte[data.length - HEADER_BYTES];
+                System.arraycopy(data, HEADER_BYTES, woven, 0, woven.length);
+                return woven;
+            }
+        }
+
+        invalid.incrementAndGet();
+        try {
+            Files.deleteIfExists(entry);
+        } catch (IOException ignored) {
+            // Woven again and overwritten below
+        }
+        return null;
+    }
+
+    private void write(String key, byte[] woven) {
+        try {
+            // Entries may only use IDs the manifest already records
+            flushManifest();
+
+            CRC32 crc = new CRC32();
+            crc.update(woven, 0, woven.length);
+            ByteBuffer data = ByteBuffer.allocate(HEADER_BYTES + woven.length);
+            data.putInt(MAGIC).putInt(woven.length).putLong(crc.getValue()).put(woven);
+
+            // Write aside and move into place, so a reader never sees a partial entry
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temp, data.array());
+            Path entry = directory.resolve(key + ENTRY_SUFFIX);
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[CustomAgent] Could not write transform cache entry: " + e.getMessage());
+        }
+    }
+
+    private static String key(String internalName, byte[] classfileBuffer) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(internalName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(classfileBuffer);
+            return hex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // ============= MANIFEST =============
+
+    /**
+     * Registers the manifest's methods; false if an ID comes out different from the one
+     * recorded, in which case no entry of the namespace can be trusted.
+     */
+    private synchronized boolean loadManifest() throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            manifestSize = 0;
+            return true;
+        }
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            if (fields.length != 4) {
+                return false;
+            }
+            int id;
+            try {
+                id = Integer.parseInt(fields[0]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (MethodRegistry.register(fields[1], fields[2], fields[3]) != id) {
+                return false;
+            }
+        }
+        manifestSize = lines.size();
+        return true;
+    }
+
+    /**
+     * Appends the methods registered since the last flush.
+     */
+    private synchronized void flushManifest() throws IOException {
+        int size = MethodRegistry.size();
+        if (size == manifestSize) {
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(MANIFEST), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (int id = manifestSize; id < size; id++) {
+                MethodDescriptor method = MethodRegistry.get(id);
+                writer.write(id + "\t" + method.className + "\t" + method.methodName + "\t" + method.descriptor);
+                writer.newLine();
+            }
+        }
+        manifestSize = size;
+    }
+
+    /**
+     * Drops every entry and rewrites the manifest from the current registry.
+     */
+    private synchronized void clear() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (!entry.getFileName().toString().equals(LOCK)) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        }
+        manifestSize = 0;
+        flushManifest();
+    }
+
+    // ============= NAMESPACE =============
+
+    private static String namespace(InstallPlan plan) throws NoSuchAlgorithmException {
+        String inputs = "agent=" + ConfigReader.getProperty("agent.version", "unknown")
+                + "|jar=" + agentJarStamp()
+                + "|bytebuddy=" + ByteBuddy.class.getPackage().getImplementationVersion()
+                + "|java=" + System.getProperty("java.version")
+                + "|" + plan.fingerprint();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return hex(digest.digest(inputs.getBytes(StandardCharsets.UTF_8))).substring(0, 24);
+    }
+
+    // Size and modification time of the agent jar, so a rebuilt agent never reuses entries
+    private static String agentJarStamp() {
+        try {
+            File location = new File(TransformCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return location.getName() + ":" + location.length() + ":" + location.lastModified();
+        } catch (Throwable t) {
+            return "unknown";
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    private interface Weaver {
+        byte[] weave() throws IllegalClassFormatException;
+    }
+
+    /**
+     * Wraps ByteBuddy's transformer: cacheable classes are looked up first and only
+     * woven on a miss.
+     */
+    private final class CachingTransformer extends ResettableClassFileTransformer.WithDelegation {
+
+        CachingTransformer(ResettableClassFileTransformer classFileTransformer) {
+            super(classFileTransformer);
+        }
+
+        @Override
+        public byte[] transform(ClassLoader loader,
+                                String internalName,
+                                Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain,
+                                byte[] classfileBuffer) throws IllegalClassFormatException {
+            if (!cacheable(loader, internalName, classBeingRedefined)) {
+                return classFileTransformer.transform(loader, internalName, classBeingRedefined,
+                        protectionDomain, classfileBuffer);
+            }
+            return TransformCache.this.transform(internalName, classfileBuffer,
+                    () -> classFileTransformer.transform(loader, internalName, classBeingRedefined,
+                            protectionDomain, classfileBuffer));
+        }
+
+        @Override
+        public byte[] transform(Module module,
+                                ClassLoader loader,
+                                String internalName,
+                                Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain,
+                                byte[] classfileBuffer) throws IllegalClassFormatException {
+            if (!cacheable(loader, internalName, classBeingRedefined)) {
+                return classFileTransformer.transform(module, loader, internalName, classBeingRedefined,
+                        protectionDomain, classfileBuffer);
+            }
+            return TransformCache.this.transform(internalName, classfileBuffer,
+                    () -> classFileTransformer.transform(module, loader, internalName, classBeingRedefined,
+                            protectionDomain, classfileBuffer));
+        }
+    }
+}
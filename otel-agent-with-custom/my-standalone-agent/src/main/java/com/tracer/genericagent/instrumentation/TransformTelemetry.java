@@ -0,0 +1,291 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AgentBuilder listener that measures what the agent costs while classes load. For
+ * every transformed class it records the time from discovery to the transformer
+ * (type resolution and matching), the time spent weaving, and the number of methods
+ * that received advice; ignored and failed types are counted, and all listener time
+ * adds up to the agent's share of JVM uptime.
+ *
+ * The totals are published as gauges on the SDK meter, and the startup report lists
+ * the most expensive packages and classes (transform.telemetry.report.top of each).
+ * A class loaded while another is being transformed on the same thread gets timings of
+ * its own, kept on a per-thread stack, and the outer class's are resumed afterwards.
+ */
+public final class TransformTelemetry extends AgentBuilder.Listener.Adapter {
+
+    public static final boolean ENABLED =
+            ConfigReader.getBooleanProperty("transform.telemetry.enabled", true);
+    public static final int REPORT_TOP =
+            ConfigReader.getIntProperty("transform.telemetry.report.top", 20);
+
+    private static final AttributeKey<String> OUTCOME = AttributeKey.stringKey("outcome");
+    private static final AttributeKey<String> PHASE = AttributeKey.stringKey("phase");
+
+    // For each class being transformed on this thread, innermost on top
+    private static final ThreadLocal<TimingStack> CURRENT = ThreadLocal.withInitial(TimingStack::new);
+
+    private final LongAdder transformedTypes = new LongAdder();
+    private final LongAdder ignoredTypes = new LongAdder();
+    private final LongAdder errorTypes = new LongAdder();
+    private final LongAdder instrumentedMethods = new LongAdder();
+    private final LongAdder matchNanos = new LongAdder();
+    private final LongAdder weaveNanos = new LongAdder();
+    private final LongAdder ignoredNanos = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final Map<String, PackageStats> packages = new ConcurrentHashMap<>();
+
+    // Min-heap of the slowest classes, at most REPORT_TOP
+    private final PriorityQueue<ClassTiming> slowest =
+            new PriorityQueue<>(Comparator.comparingLong(ClassTiming::totalNanos));
+
+    /**
+     * Marks the start of weaving for the class on this thread. Called from the transformer.
+     */
+    public static void transformStarted() {
+        CURRENT.get().set(TimingStack.TRANSFORM_START, System.nanoTime());
+    }
+
+    /**
+     * Counts a method receiving advice. Called while the advice is woven.
+     */
+    public static void methodInstrumented() {
+        TimingStack current = CURRENT.get();
+        current.set(TimingStack.METHODS, current.get(TimingStack.METHODS) + 1);
+    }
+
+    @Override
+    public void onDiscovery(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+        CURRENT.get().push(System.nanoTime());
+    }
+
+    @Override
+    public void onTransformation(TypeDescription typeDescription,
+                                 ClassLoader classLoader,
+                                 JavaModule module,
+                                 boolean loaded,
+                                 DynamicType dynamicType) {
+        long now = System.nanoTime();
+        TimingStack current = CURRENT.get();
+        long discovered = current.get(TimingStack.DISCOVERED);
+        long transformStart = current.get(TimingStack.TRANSFORM_START);
+        if (transformStart == 0) {
+            transformStart = now;
+        }
+        long match = transformStart - discovered;
+        long weave = now - transformStart;
+        int methods = (int) current.get(TimingStack.METHODS);
+
+        transformedTypes.increment();
+        instrumentedMethods.add(methods);
+        matchNanos.add(match);
+        weaveNanos.add(weave);
+
+        String name = typeDescription.getName();
+        PackageStats stats = packages.computeIfAbsent(packageOf(name), key -> new PackageStats());
+        stats.classes.increment();
+        stats.methods.add(methods);
+        stats.matchNanos.add(match);
+        stats.weaveNanos.add(weave);
+
+        ClassTiming timing = new ClassTiming(name, match, weave, methods);
+        synchronized (slowest) {
+            if (slowest.size() < REPORT_TOP) {
+                slowest.add(timing);
+            } else if (!slowest.isEmpty() && slowest.peek().totalNanos() < timing.totalNanos()) {
+                slowest.poll();
+                slowest.add(timing);
+            }
+        }
+    }
+
+    @Override
+    public void onIgnored(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, boolean loaded) {
+        ignoredTypes.increment();
+        ignoredNanos.add(System.nanoTime() - CURRENT.get().get(TimingStack.DISCOVERED));
+    }
+
+    @Override
+    public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+        errorTypes.increment();
+        packages.computeIfAbsent(packageOf(typeName), key -> new PackageStats()).errors.increment();
+    }
+
+    @Override
+    public void onComplete(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded) {
+        TimingStack current = CURRENT.get();
+        totalNanos.add(System.nanoTime() - current.get(TimingStack.DISCOVERED));
+        current.pop();
+    }
+
+    /**
+     * Registers the totals as gauges on the agent's meter.
+     */
+    public void registerMetrics() {
+        try {
+            Meter meter = GlobalOpenTelemetry.getMeter("generic-agent-meter");
+            meter.gaugeBuilder("agent.transform.types")
+                    .setDescription("Types seen by the agent's transformer, by outcome")
+                    .ofLongs()
+                    .buildWithCallback(obs -> {
+                        obs.record(transformedTypes.sum(), Attributes.of(OUTCOME, "transformed"));
+                        obs.record(ignoredTypes.sum(), Attributes.of(OUTCOME, "ignored"));
+                        obs.record(errorTypes.sum(), Attributes.of(OUTCOME, "error"));
+                    });
+            meter.gaugeBuilder("agent.transform.methods")
+                    .setDescription("Methods that received advice")
+                    .ofLongs()
+                    .buildWithCallback(obs -> obs.record(instrumentedMethods.sum(), Attributes.empty()));
+            meter.gaugeBuilder("agent.transform.time")
+                    .setDescription("Cumulative time spent in the agent's transformer")
+                    .setUnit("ms")
+                    .ofLongs()
+                    .buildWithCallback(obs -> {
+                        obs.record(matchNanos.sum() / 1_000_000, Attributes.of(PHASE, "match"));
+                        obs.record(weaveNanos.sum() / 1_000_000, Attributes.of(PHASE, "weave"));
+                        obs.record(ignoredNanos.sum() / 1_000_000, Attributes.of(PHASE, "ignored"));
+                        obs.record(totalNanos.sum() / 1_000_000, Attributes.of(PHASE, "total"));
+                    });
+            meter.gaugeBuilder("agent.transform.uptime.share")
+                    .setDescription("Cumulative transformer time as a fraction of JVM uptime")
+                    .buildWithCallback(obs -> obs.record(uptimeShare(), Attributes.empty()));
+        } catch (Throwable t) {
+            System.err.println("[CustomAgent] Could not register transform metrics: " + t.getMessage());
+        }
+    }
+
+    public void report() {
+        long uptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.out.println(String.format(
+                "[EnhancedAdvisor] Transform telemetry: %d types transformed (%d methods), %d ignored, %d errors;"
+                        + " agent time %d ms of %d ms uptime (%.1f%%)",
+                transformedTypes.sum(), instrumentedMethods.sum(), ignoredTypes.sum(), errorTypes.sum(),
+                totalNanos.sum() / 1_000_000, uptimeMs, uptimeShare() * 100));
+        System.out.println(String.format(
+                "[EnhancedAdvisor] Transform telemetry: match %d ms, weave %d ms, ignored types %d ms",
+                matchNanos.sum() / 1_000_000, weaveNanos.sum() / 1_000_000, ignoredNanos.sum() / 1_000_000));
+
+        List<Map.Entry<String, PackageStats>> byPackage = new ArrayList<>(packages.entrySet());
+        byPackage.sort(Comparator.comparingLong(
+                (Map.Entry<String, PackageStats> entry) -> entry.getValue().totalNanos()).reversed());
+        System.out.println("[EnhancedAdvisor] Most expensive packages:");
+        for (Map.Entry<String, PackageStats> entry : byPackage.subList(0, Math.min(REPORT_TOP, byPackage.size()))) {
+            PackageStats stats = entry.getValue();
+            System.out.println(String.format("[EnhancedAdvisor]   %-50s %5d classes %6d methods match %6.1f ms weave %6.1f ms %d errors",
+                    entry.getKey(), stats.classes.sum(), stats.methods.sum(),
+                    stats.matchNanos.sum() / 1e6, stats.weaveNanos.sum() / 1e6, stats.errors.sum()));
+        }
+
+        List<ClassTiming> classes;
+        synchronized (slowest) {
+            classes = new ArrayList<>(slowest);
+        }
+        classes.sort(Comparator.comparingLong(ClassTiming::totalNanos).reversed());
+        System.out.println("[EnhancedAdvisor] Most expensive classes:");
+        for (ClassTiming timing : classes) {
+            System.out.println(String.format("[EnhancedAdvisor]   %-70s %4d methods match %6.2f ms weave %6.2f ms",
+                    timing.name, timing.methods, timing.matchNanos / 1e6, timing.weaveNanos / 1e6));
+        }
+    }
+
+    private double uptimeShare() {
+        long uptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        return uptimeMs <= 0 ? 0 : totalNanos.sum() / (uptimeMs * 1_000_000.0);
+    }
+
+    private static String packageOf(String typeName) {
+        int lastDot = typeName.lastIndexOf('.');
+        return lastDot < 0 ? "" : typeName.substring(0, lastDot);
+    }
+
+    /**
+     * Discovery time, transform start and methods woven of each class being transformed
+     * on one thread, three longs per class. Reads and writes with nothing pushed, e.g.
+     * from a transformation the listener didn't see discovered, go to a scratch frame.
+     */
+    private static final class TimingStack {
+        static final int DISCOVERED = 0;
+        static final int TRANSFORM_START = 1;
+        static final int METHODS = 2;
+        private static final int FRAME = 3;
+
+        private long[] frames = new long[FRAME * 4];
+        private int depth;
+
+        void push(long discovered) {
+            depth++;
+            if (depth * FRAME >= frames.length) {
+                frames = Arrays.copyOf(frames, frames.length * 2);
+            }
+            int top = depth * FRAME;
+            frames[top + DISCOVERED] = discovered;
+            frames[top + TRANSFORM_START] = 0;
+            frames[top + METHODS] = 0;
+        }
+
+        void pop() {
+            if (depth > 0) {
+                depth--;
+            }
+        }
+
+        long get(int field) {
+            return frames[depth * FRAME + field];
+        }
+
+        void set(int field, long value) {
+            frames[depth * FRAME + field] = value;
+        }
+    }
+
+    private static final class PackageStats {
+        final LongAdder classes = new LongAdder();
+        final LongAdder methods = new LongAdder();
+        final LongAdder matchNanos = new LongAdder();
+        final LongAdder weaveNanos = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        long totalNanos() {
+            return matchNanos.sum() + weaveNanos.sum();
+        }
+    }
+
+    private static final class ClassTiming {
+        final String name;
+        final long matchNanos;
+        final long weaveNanos;
+        final int methods;
+
+        ClassTiming(String name, long matchNanos, long weaveNanos, int methods) {
+            this.name = name;
+            this.matchNanos = matchNanos;
+            this.weaveNanos = weaveNanos;
+            this.methods = methods;
+        }
+
+        long totalNanos() {
+            return matchNanos + weaveNanos;
+        }
+    }
+}
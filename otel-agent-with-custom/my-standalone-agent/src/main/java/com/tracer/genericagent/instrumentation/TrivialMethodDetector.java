@@ -0,0 +1,344 @@
+package com.tracer.genericagent.instrumentation;
+
+import com.tracer.genericagent.util.ConfigReader;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.jar.asm.ClassReader;
+import net.bytebuddy.jar.asm.ClassVisitor;
+import net.bytebuddy.jar.asm.Handle;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.utility.OpenedClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds trivial methods from their bytecode, in place of the name heuristics (get*, set*,
+ * to*, *Util*, ...) that used to filter them: a method is trivial when it runs straight
+ * through without calling anything, or when it has fewer than
+ * instrument.trivial.min.instructions instructions, which leaves room for a one-line
+ * delegator such as getX() { return delegate.getX(); } or a compareTo that calls
+ * Integer.compare. A method is kept whatever its size when it loops, as even a short
+ * loop such as while (!ready) {} can take arbitrarily long; when it calls one of
+ * instrument.trivial.blocking.types (threads, locks and futures, I/O, sockets, JDBC),
+ * as a one-line Thread.sleep or socket read may block; and when it throws, as its span
+ * is where the error is recorded. A getQuote(id) that does real work is now traced,
+ * and a field accessor with a business-like name is not.
+ * instrument.trivial.detection=false restores the name heuristics.
+ *
+ * Classes are read with ByteBuddy's ASM, skipping debug information and frames; the
+ * result is cached per class loader and class by ClassLoaderMatcher. At runtime the
+ * class being transformed is analyzed from the bytes handed to the transformer, which
+ * ClassFileCapture keeps for the thread while ByteBuddy matches and weaves it; only
+ * other classes are read from the loader's resources.
+ */
+public final class TrivialMethodDetector {
+
+    public static final boolean ENABLED =
+            ConfigReader.getBooleanProperty("instrument.trivial.detection", true);
+    public static final int MIN_INSTRUCTIONS =
+            ConfigReader.getIntProperty("instrument.trivial.min.instructions", 7);
+
+    // Classes, or packages when ending in '.', whose methods may block; internal names for matching owners
+    private static final List<String> BLOCKING_TYPES = internalNames(ConfigReader.getProperty(
+            "instrument.trivial.blocking.types",
+            "java.lang.Thread,java.lang.Process,java.util.concurrent.,java.io.,java.nio.channels.,"
+                    + "java.nio.file.,java.net.,java.sql.,javax.sql.,javax.naming."));
+
+    private static final LongAdder ANALYZED_CLASSES = new LongAdder();
+    private static final LongAdder TRIVIAL_METHODS = new LongAdder();
+
+    // The class file the transformer is handling on this thread, innermost load first
+    private static final ThreadLocal<CapturedClass> CAPTURED = new ThreadLocal<>();
+
+    private TrivialMethodDetector() {}
+
+    /**
+     * The trivial methods of the class, as name plus descriptor: from the bytes being
+     * transformed when it is the class ByteBuddy is handling on this thread, else from the
+     * loader's resources; empty when the class file can't be found.
+     */
+    public static Set<String> trivialMethods(ClassLoader classLoader, String className) {
+        CapturedClass captured = CAPTURED.get();
+        if (captured != null && captured.internalName.equals(className.replace('.', '/'))) {
+            try {
+                return trivialMethods(captured.classFile);
+            } catch (RuntimeException e) {
+                return Collections.emptySet();
+            }
+        }
+        try (InputStream in = classLoader.getResourceAsStream(className.replace('.', '/') + ".class")) {
+            return in == null ? Collections.emptySet() : trivialMethods(in.readAllBytes());
+        } catch (IOException | RuntimeException e) {
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * The trivial methods of the class the locator finds, as name plus descriptor.
+     */
+    public static Set<String> trivialMethods(ClassFileLocator classFileLocator, String className) {
+        try {
+            ClassFileLocator.Resolution resolution = classFileLocator.locate(className);
+            return resolution.isResolved() ? trivialMethods(resolution.resolve()) : Collections.<String>emptySet();
+        } catch (IOException | RuntimeException e) {
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * The trivial methods of the class file, as name plus descriptor.
+     */
+    public static Set<String> trivialMethods(byte[] classFile) {
+        Set<String> trivial = new HashSet<>();
+        OpenedClassReader.of(classFile).accept(new ClassVisitor(OpenedClassReader.ASM_API) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                             String signature, String[] exceptions) {
+                if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                    return null;
+                }
+                return new MethodShape(name + descriptor, trivial);
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        ANALYZED_CLASSES.increment();
+        TRIVIAL_METHODS.add(trivial.size());
+        return trivial;
+    }
+
+    private static List<String> internalNames(String types) {
+        List<String> names = new ArrayList<>();
+        for (String type : types.split(",")) {
+            if (!type.trim().isEmpty()) {
+                names.add(type.trim().replace('.', '/'));
+            }
+        }
+        return names;
+    }
+
+    // Whether a call to the method of this owner (an internal name) may block
+    private static boolean mayBlock(String owner, String name) {
+        if ("wait".equals(name)) {
+            // Object.wait, whatever the receiver's type
+            return true;
+        }
+        for (String type : BLOCKING_TYPES) {
+            if (type.endsWith("/") ? owner.startsWith(type) : owner.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Classes analyzed and trivial methods found so far.
+     */
+    public static String describe() {
+        return ANALYZED_CLASSES.sum() + " classes analyzed, " + TRIVIAL_METHODS.sum() + " trivial methods found";
+    }
+
+    /**
+     * Keeps the bytes of the class being transformed for the thread, so that the method
+     * matcher analyzes the class file the JVM already read rather than reading it again.
+     */
+    public static final class ClassFileCapture implements AgentBuilder.TransformerDecorator {
+
+        @Override
+        public ResettableClassFileTransformer decorate(ResettableClassFileTransformer classFileTransformer) {
+            return new CapturingTransformer(classFileTransformer);
+        }
+    }
+
+    private static final class CapturedClass {
+        private final String internalName;
+        private final byte[] classFile;
+        private final CapturedClass outer;
+
+        private CapturedClass(String internalName, byte[] classFile, CapturedClass outer) {
+            this.internalName = internalName;
+            this.classFile = classFile;
+            this.outer = outer;
+        }
+    }
+
+    private static final class CapturingTransformer extends ResettableClassFileTransformer.WithDelegation {
+
+        private CapturingTransformer(ResettableClassFileTransformer classFileTransformer) {
+            super(classFileTransformer);
+        }
+
+        @Override
+        public byte[] transform(ClassLoader loader,
+                                String internalName,
+                                Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain,
+                                byte[] classfileBuffer) throws IllegalClassFormatException {
+            if (internalName == null) {
+                return classFileTransformer.transform(loader, internalName, classBeingRedefined,
+                        protectionDomain, classfileBuffer);
+            }
+            CapturedClass outer = CAPTURED.get();
+            CAPTURED.set(new CapturedClass(internalName, classfileBuffer, outer));
+            try {
+                return classFileTransformer.transform(loader, internalName, classBeingRedefined,
+                        protectionDomain, classfileBuffer);
+            } finally {
+                restore(outer);
+            }
+        }
+
+        @Override
+        public byte[] transform(Module module,
+                                ClassLoader loader,
+                                String internalName,
+                                Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain,
+                                byte[] classfileBuffer) throws IllegalClassFormatException {
+            if (internalName == null) {
+                return classFileTransformer.transform(module, loader, internalName, classBeingRedefined,
+                        protectionDomain, classfileBuffer);
+            }
+            CapturedClass outer = CAPTURED.get();
+            CAPTURED.set(new CapturedClass(internalName, classfileBuffer, outer));
+            try {
+                return classFileTransformer.transform(module, loader, internalName, classBeingRedefined,
+                        protectionDomain, classfileBuffer);
+            } finally {
+                restore(outer);
+            }
+        }
+
+        private static void restore(CapturedClass outer) {
+            if (outer == null) {
+                CAPTURED.remove();
+            } else {
+                CAPTURED.set(outer);
+            }
+        }
+    }
+
+    /**
+     * Counts a method's instructions and notes whether it calls anything, calls something
+     * that may block, jumps back or throws.
+     */
+    private static final class MethodShape extends MethodVisitor {
+        private final String method;
+        private final Set<String> trivial;
+        private final Set<Label> visitedLabels = new HashSet<>();
+        private int instructions;
+        private boolean invokes;
+        private boolean blocks;
+        private boolean loops;
+        private boolean throwsException;
+
+        private MethodShape(String method, Set<String> trivial) {
+            super(OpenedClassReader.ASM_API);
+            this.method = method;
+            this.trivial = trivial;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            visitedLabels.add(label);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            instructions++;
+            throwsException |= opcode == Opcodes.ATHROW;
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            instructions++;
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            instructions++;
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            instructions++;
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            instructions++;
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            instructions++;
+            invokes = true;
+            blocks |= mayBlock(owner, name);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                           Object... bootstrapMethodArguments) {
+            instructions++;
+            invokes = true;
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            instructions++;
+            // Code is visited in order, so a jump to a label already seen goes backwards
+            loops |= visitedLabels.contains(label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            instructions++;
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            instructions++;
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            instructions++;
+            switchesBack(dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            instructions++;
+            switchesBack(dflt, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            instructions++;
+        }
+
+        @Override
+        public void visitEnd() {
+            if (!throwsException && !loops && !blocks && (!invokes || instructions < MIN_INSTRUCTIONS)) {
+                trivial.add(method);
+            }
+        }
+
+        private void switchesBack(Label dflt, Label[] labels) {
+            loops |= visitedLabels.contains(dflt);
+            for (Label label : labels) {
+                loops |= visitedLabels.contains(label);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.tracer.genericagent.instrumentation;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Virtual thread detection that compiles and runs on JDKs without virtual threads.
+ * Thread.isVirtual() is looked up once; on older JDKs the handle is null and
+ * {@link #isCurrentThreadVirtual()} folds to a constant false.
+ * MUST BE PUBLIC for accessibility from instrumented classes.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    public static final boolean SUPPORTED = IS_VIRTUAL != null;
+
+    private VirtualThreads() {}
+
+    public static boolean isCurrentThreadVirtual() {
+        if (!SUPPORTED) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(
+                    Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -225,8 +225,19 @@ public class ConfigReader {
         return 3;
     }
 
+    /**
+     * Minimum duration for a call to get its own span in lazy advice mode
+     */
     public static long getMinSpanDurationMs() {
-        return Long.parseLong(getPropOrEnv("span.min.duration.ms", "10")); // Default 10ms
+        String val = getPropOrEnv("span.min.duration.ms", "TRACE_SPAN_MIN_DURATION_MS");
+        if (!val.isEmpty()) {
+            try {
+                return Long.parseLong(val.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid span.min.duration.ms: " + val + ", using default=10");
+            }
+        }
+        return 10; // Default 10ms
     }
 
     /**
@@ -441,14 +452,16 @@ public class ConfigReader {
      * @return Maximum number of traces to store in memory
      */
     public static int getMaxPendingTraces() {
-        String value = getPropOrEnv("trace.memory.max.pending.traces", "1000");
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            System.out.println("[ConfigReader] Invalid max pending traces value: " + value +
-                    ", using default: 1000");
-            return 1000;
+        String value = getPropOrEnv("trace.memory.max.pending.traces", "TRACE_MAX_PENDING_TRACES");
+        if (!value.isEmpty()) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("[ConfigReader] Invalid max pending traces value: " + value +
+                        ", using default: 1000");
+            }
         }
+        return 1000;
     }
 
     /**
@@ -456,14 +469,32 @@ public class ConfigReader {
      * @return Maximum number of spans per trace to store in memory
      */
     public static int getMaxSpansPerTrace() {
-        String value = getPropOrEnv("trace.memory.max.spans.per.trace", "100");
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            System.out.println("[ConfigReader] Invalid max spans per trace value: " + value +
-                    ", using default: 100");
-            return 100;
+        String value = getPropOrEnv("trace.memory.max.spans.per.trace", "TRACE_MAX_SPANS_PER_TRACE");
+        if (!value.isEmpty()) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("[ConfigReader] Invalid max spans per trace value: " + value +
+                        ", using default: 100");
+            }
+        }
+        return 100;
+    }
+
+    /**
+     * Gets the advice implementation to weave into instrumented methods
+     * @return "stack" (per-thread span stack, the default), "handoff" (advice-local enter/exit state)
+     *         or "lazy" (spans only for calls slower than span.min.duration.ms)
+     */
+    public static String getAdviceMode() {
+        String val = getPropOrEnv("advice.mode", "TRACE_ADVICE_MODE").trim().toLowerCase();
+        if (val.equals("handoff") || val.equals("lazy")) {
+            return val;
+        }
+        if (!val.isEmpty() && !val.equals("stack")) {
+            System.out.println("Invalid advice.mode: " + val + ", using default=stack");
         }
+        return "stack";
     }
 
     /**
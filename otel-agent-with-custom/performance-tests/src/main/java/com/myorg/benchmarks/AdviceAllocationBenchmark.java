@@ -0,0 +1,149 @@
+package com.myorg.benchmarks;
+
+import com.tracer.genericagent.instrumentation.MethodRegistry;
+import com.tracer.genericagent.instrumentation.SimplifiedGenericMethodAdvice;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the enter/exit advice, driven directly (no agent needed).
+ *
+ * Run with the GC profiler to see bytes per call:
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar AdviceAllocationBenchmark -prof gc
+ * and compare gc.alloc.rate.norm between the three benchmarks.
+ *
+ * - sdkOnly:          the floor - what the OTel SDK allocates for one span
+ * - legacyAdvice:     the per-call work of the advice before the descriptor table
+ *                     (Origin string split, String-keyed attributes, UUID, SpanInfo, Deque)
+ * - descriptorAdvice: the current SimplifiedGenericMethodAdvice
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AdviceAllocationBenchmark {
+
+    private static final String ORIGIN = "com.myorg.app.OrderService.subProcess";
+
+    private int methodId;
+    private Tracer tracer;
+
+    @Setup
+    public void setup() {
+        // Always-on sampler with no processors, so only span creation itself is measured
+        SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+                .setSampler(Sampler.alwaysOn())
+                .build();
+        OpenTelemetrySdk.builder()
+                .setTracerProvider(tracerProvider)
+                .buildAndRegisterGlobal();
+
+        tracer = GlobalOpenTelemetry.getTracer("generic-agent-tracer", "1.0.0");
+        methodId = MethodRegistry.register("com.myorg.app.OrderService", "subProcess", "(Ljava/lang/String;)V");
+    }
+
+    @Benchmark
+    public void sdkOnly() {
+        Span span = tracer.spanBuilder(ORIGIN).startSpan();
+        io.opentelemetry.context.Scope scope = span.makeCurrent();
+        scope.close();
+        span.end();
+    }
+
+    @Benchmark
+    public void legacyAdvice() {
+        LegacyAdvice.onEnter(ORIGIN);
+        LegacyAdvice.onExit();
+    }
+
+    @Benchmark
+    public void descriptorAdvice() {
+        // Platform thread: the span goes on the per-thread stack
+        Object frame = SimplifiedGenericMethodAdvice.onEnter(methodId);
+        SimplifiedGenericMethodAdvice.onExit(methodId, frame, null);
+    }
+
+    /**
+     * Mirror of the hot path of the advice before per-method descriptors were introduced.
+     */
+    static final class LegacyAdvice {
+
+        static final ThreadLocal<Deque<SpanInfo>> STACK = ThreadLocal.withInitial(ArrayDeque::new);
+
+        static final class SpanInfo {
+            final Span span;
+            final io.opentelemetry.context.Scope scope;
+            final long startTimeMs;
+
+            SpanInfo(Span span, io.opentelemetry.context.Scope scope) {
+                this.span = span;
+                this.scope = scope;
+                this.startTimeMs = System.currentTimeMillis();
+            }
+        }
+
+        static void onEnter(String methodName) {
+            String className = methodName.substring(0, methodName.lastIndexOf('.'));
+            String methodNameOnly = methodName.substring(methodName.lastIndexOf('.') + 1);
+
+            Tracer tracer = GlobalOpenTelemetry.get().getTracer("generic-agent-tracer", "1.0.0");
+            Context currentContext = Context.current();
+            Span parentSpan = Span.fromContext(currentContext);
+
+            SpanBuilder spanBuilder = tracer.spanBuilder(methodName)
+                    .setSpanKind(SpanKind.INTERNAL)
+                    .setParent(currentContext);
+
+            String parentId = "";
+            if (parentSpan.getSpanContext().isValid()) {
+                parentId = parentSpan.getSpanContext().getSpanId();
+            } else {
+                UUID.randomUUID().toString();
+            }
+
+            Span span = spanBuilder
+                    .setAttribute("ai.operation.name", methodName)
+                    .setAttribute("ai.cloud.role", SimplifiedGenericMethodAdvice.SERVICE_NAME)
+                    .setAttribute("ai.operation.parentId", parentId)
+                    .setAttribute("service.name", SimplifiedGenericMethodAdvice.SERVICE_NAME)
+                    .setAttribute("code.namespace", className)
+                    .setAttribute("code.function", methodNameOnly)
+                    .startSpan();
+            span.setAttribute("trace.id", span.getSpanContext().getTraceId());
+            span.setAttribute("ai.operation.id", span.getSpanContext().getTraceId());
+
+            io.opentelemetry.context.Scope scope = span.makeCurrent();
+            STACK.get().push(new SpanInfo(span, scope));
+        }
+
+        static void onExit() {
+            Deque<SpanInfo> stack = STACK.get();
+            SpanInfo info = stack.pop();
+            Span span = info.span;
+            span.setStatus(StatusCode.OK);
+            span.setAttribute("ai.operation.isSuccessful", true);
+            span.setAttribute("duration_ms", System.currentTimeMillis() - info.startTimeMs);
+            span.end();
+            info.scope.close();
+            if (stack.isEmpty()) {
+                STACK.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.myorg.benchmarks;
+
+import com.tracer.genericagent.instrumentation.EnhancedGenericMethodAdvisor;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.namedOneOf;
+
+/**
+ * A/B of the advice modes (advice.mode=stack, handoff and lazy), woven into the
+ * same small class exactly as the agent would weave it (no agent needed).
+ *
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar AdviceModeBenchmark -prof gc
+ *
+ * outerCall traces one parent with two children, so it also covers the parent/child handoff.
+ * samplerRatio below 1 shows the cost of unsampled calls, which should only propagate context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AdviceModeBenchmark {
+
+    @Param({"stack", "handoff", "lazy"})
+    public String adviceMode;
+
+    @Param({"1.0", "0.05"})
+    public double samplerRatio;
+
+    private Work woven;
+    private long seed;
+
+    public interface Work {
+        long outer(long x);
+        long inner(long x);
+    }
+
+    public static class Target implements Work {
+        @Override
+        public long outer(long x) {
+            return inner(x) + inner(x + 1);
+        }
+
+        @Override
+        public long inner(long x) {
+            return x * 31 + 7;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        // Same sampler shape as the agent builds, with no processors, so only the advice and span creation are measured
+        OpenTelemetrySdk.builder()
+                .setTracerProvider(SdkTracerProvider.builder()
+                        .setSampler(Sampler.parentBased(Sampler.traceIdRatioBased(samplerRatio)))
+                        .build())
+                .buildAndRegisterGlobal();
+
+        Class<? extends Work> type = new ByteBuddy()
+                .redefine(Target.class)
+                .visit(EnhancedGenericMethodAdvisor.buildAdvice(adviceMode).on(namedOneOf("outer", "inner")))
+                .make()
+                .load(Target.class.getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
+                .getLoaded();
+        woven = type.getDeclaredConstructor().newInstance();
+    }
+
+    @Benchmark
+    public long innerCall() {
+        return woven.inner(seed++);
+    }
+
+    @Benchmark
+    public long outerCall() {
+        return woven.outer(seed++);
+    }
+}
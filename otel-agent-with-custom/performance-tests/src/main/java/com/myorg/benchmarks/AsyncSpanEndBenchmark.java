@@ -0,0 +1,98 @@
+package com.myorg.benchmarks;
+
+import com.tracer.genericagent.instrumentation.AsyncEndSpanProcessor;
+import com.tracer.genericagent.instrumentation.TraceFilteringSpanProcessor;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ending spans on the application thread with the agent's processor chain
+ * (TraceFilteringSpanProcessor over a BatchSpanProcessor), run synchronously or
+ * offloaded with span.end.async.enabled. SampleTime reports percentiles, which is
+ * where the processor work shows up.
+ *
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar AsyncSpanEndBenchmark
+ *
+ * Each operation is one small trace: a root span with three children. With appWork=0
+ * the benchmark thread does nothing but end spans, faster than any drainer can keep up
+ * with, so the buffer fills and ends fall back to the calling thread; appWork adds
+ * application work per request, as in a real service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AsyncSpanEndBenchmark {
+
+    @Param({"false", "true"})
+    public boolean asyncEnd;
+
+    // Blackhole.consumeCPU tokens per trace
+    @Param({"0", "20000"})
+    public long appWork;
+
+    private SdkTracerProvider tracerProvider;
+    private Tracer tracer;
+
+    @Setup
+    public void setup() {
+        SpanProcessor processor = new TraceFilteringSpanProcessor(
+                BatchSpanProcessor.builder(new DiscardingExporter())
+                        .setScheduleDelay(100, TimeUnit.MILLISECONDS)
+                        .setMaxExportBatchSize(512)
+                        .setMaxQueueSize(2048)
+                        .build());
+        if (asyncEnd) {
+            processor = new AsyncEndSpanProcessor(processor);
+        }
+        tracerProvider = SdkTracerProvider.builder().addSpanProcessor(processor).build();
+        tracer = tracerProvider.get("async-end-benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void traceWithThreeChildren() {
+        Span root = tracer.spanBuilder("root").startSpan();
+        Context parent = Context.root().with(root);
+        for (int i = 0; i < 3; i++) {
+            tracer.spanBuilder("child").setParent(parent).startSpan().end();
+        }
+        Blackhole.consumeCPU(appWork);
+        root.end();
+    }
+
+    static final class DiscardingExporter implements SpanExporter {
+        @Override
+        public CompletableResultCode export(Collection<SpanData> spans) {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.myorg.benchmarks;
+
+import com.tracer.genericagent.bootstrap.ContextBridge;
+import com.tracer.genericagent.instrumentation.ContextWrapper;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-task cost of context propagation (context.propagation.enabled=true): what the woven
+ * ThreadPoolExecutor.execute adds on submit, plus restoring the context when the task runs.
+ *
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar ContextPropagationBenchmark -prof gc
+ *
+ * - baseline:        running the task directly
+ * - noActiveContext: submit from a thread with no active context - the task is not wrapped
+ * - activeContext:   submit inside a span - wrap on submit, makeCurrent/close on run
+ */
+@State(org.openjdk.jmh.annotations.Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ContextPropagationBenchmark {
+
+    private final ContextWrapper wrapper = new ContextWrapper();
+    private final Runnable task = () -> { };
+
+    private Context spanContext;
+
+    @Setup
+    public void setup() {
+        SpanContext parent = SpanContext.create("0af7651916cd43dd8448eb211c80319c", "b7ad6b7169203331",
+                TraceFlags.getSampled(), TraceState.getDefault());
+        spanContext = Context.root().with(Span.wrap(parent));
+    }
+
+    @Benchmark
+    public void baseline() {
+        task.run();
+    }
+
+    @Benchmark
+    public void noActiveContext() {
+        ((Runnable) wrapper.wrap(task, ContextBridge.RUNNABLE)).run();
+    }
+
+    @Benchmark
+    public void activeContext() {
+        try (io.opentelemetry.context.Scope ignored = spanContext.makeCurrent()) {
+            ((Runnable) wrapper.wrap(task, ContextBridge.RUNNABLE)).run();
+        }
+    }
+}
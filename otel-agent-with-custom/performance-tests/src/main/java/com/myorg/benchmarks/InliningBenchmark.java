@@ -0,0 +1,288 @@
+package com.myorg.benchmarks;
+
+import com.tracer.genericagent.instrumentation.EnhancedGenericMethodAdvisor;
+import com.tracer.genericagent.instrumentation.MethodRegistry;
+import com.tracer.genericagent.instrumentation.SiblingAggregates;
+import com.tracer.genericagent.instrumentation.SpanStack;
+import com.tracer.genericagent.instrumentation.VirtualThreads;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.tracer.genericagent.instrumentation.SimplifiedGenericMethodAdvice.*;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Whether callers still inline an instrumented method. A small method is woven with the
+ * stack advice (thin: the enabled check and a call, the rest out of line), with a mirror
+ * of the advice as it was before, which inlined its whole body (inlined), or not at all
+ * (none), and called 16 times per operation from a method that isn't instrumented.
+ *
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar InliningBenchmark
+ *   ./check-inlining.sh
+ *
+ * With traced=false the governor has switched the method off, so only the advice's
+ * residue and the inlining decision are measured. check-inlining.sh runs the benchmark
+ * with -XX:+PrintInlining and prints HotSpot's decision for the instrumented method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InliningBenchmark {
+
+    @Param({"none", "thin", "inlined"})
+    public String advice;
+
+    @Param({"false", "true"})
+    public boolean traced;
+
+    private Work woven;
+    private long seed;
+
+    public interface Work {
+        long caller(long x);
+        long callee(long x);
+    }
+
+    public static class Target implements Work {
+        @Override
+        public long caller(long x) {
+            long sum = 0;
+            for (int i = 0; i < 16; i++) {
+                sum += callee(x + i);
+            }
+            return sum;
+        }
+
+        @Override
+        public long callee(long x) {
+            return x * 31 + 7;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        OpenTelemetrySdk.builder()
+                .setTracerProvider(SdkTracerProvider.builder()
+                        .setSampler(Sampler.parentBased(Sampler.alwaysOn()))
+                        .build())
+                .buildAndRegisterGlobal();
+
+        if ("none".equals(advice)) {
+            woven = new Target();
+            return;
+        }
+        Advice weaving = "thin".equals(advice)
+                ? EnhancedGenericMethodAdvisor.buildAdvice("stack")
+                : Advice.withCustomMapping()
+                        .bind(MethodRegistry.Id.class, new MethodRegistry.IdMapping())
+                        .to(InlinedAdvice.class);
+        Class<? extends Work> type = new ByteBuddy()
+                .redefine(Target.class)
+                .visit(weaving.on(named("callee")))
+                .make()
+                .load(Target.class.getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
+                .getLoaded();
+        woven = type.getDeclaredConstructor().newInstance();
+
+        // Switched off as the governor would
+        MethodRegistry.find(Target.class.getName(), "callee", "(J)J").enabled = traced;
+    }
+
+    @Benchmark
+    public long callInstrumented() {
+        return woven.caller(seed++);
+    }
+
+    /**
+     * Mirror of the stack advice before its entry and exit moved out of line.
+     */
+    public static class InlinedAdvice {
+
+        public static final int NOT_TRACED = 0;
+        public static final int ON_STACK = 1;
+        public static final int IN_LOCALS = 2;
+        public static final int FOLDED = 3;
+        public static final int SUMMARIZED = 4;
+
+        @Advice.OnMethodEnter(suppress = Throwable.class)
+        public static int onEnter(
+                @MethodRegistry.Id int methodId,
+                @Advice.Local("span") Span localSpan,
+                @Advice.Local("scope") io.opentelemetry.context.Scope localScope,
+                @Advice.Local("startNanos") long localStartNanos) {
+
+            if (!MethodRegistry.get(methodId).enabled) {
+                return NOT_TRACED;
+            }
+
+            if (VirtualThreads.isCurrentThreadVirtual()) {
+                try {
+                    localSpan = startSpan(methodId);
+                    if (localSpan != null) {
+                        localScope = localSpan.makeCurrent();
+                        localStartNanos = localSpan.isRecording() ? System.nanoTime() : 0L;
+                    }
+                } catch (Throwable t) {
+                    System.err.println("[CustomAgent] ERROR in onEnter for method #" + methodId + ": " + t.getMessage());
+                    abandonSpan(localSpan, localScope);
+                    localSpan = null;
+                    localScope = null;
+                }
+                return IN_LOCALS;
+            }
+
+            SpanStack stack = ACTIVE_SPANS_STACK.get();
+
+            if (RECURSION_FOLDING_ENABLED) {
+                int outer = stack.indexOf(methodId);
+                if (outer >= 0) {
+                    stack.enterRecursion(outer);
+                    return FOLDED;
+                }
+            }
+
+            if (SIBLING_AGGREGATION_ENABLED && !stack.isEmpty()) {
+                int parent = stack.size() - 1;
+                if (stack.isSummarized(parent)) {
+                    // Part of an aggregated call: covered by its duration, not traced on its own
+                    stack.pushSummarized(methodId, 0L);
+                    return SUMMARIZED;
+                }
+                Span parentSpan = stack.spanAt(parent);
+                if (parentSpan != null && parentSpan.isRecording()
+                        && stack.siblingsAt(parent).shouldAggregate(methodId, SIBLING_AGGREGATION_THRESHOLD)) {
+                    stack.pushSummarized(methodId, System.nanoTime());
+                    return SUMMARIZED;
+                }
+            }
+
+            Span span = null;
+            io.opentelemetry.context.Scope scope = null;
+            long startNanos = 0L;
+
+            try {
+                // Skip instrumentation if too deep, but still push a frame so onExit stays paired
+                if (stack.size() < MAX_STACK_DEPTH) {
+                    span = startSpan(methodId);
+                    if (span != null) {
+                        // Make the new span current, even when not recording, so children see the sampling decision
+                        scope = span.makeCurrent();
+                        startNanos = span.isRecording() ? System.nanoTime() : 0L;
+                    }
+                }
+            } catch (Throwable t) {
+                // Log error but catch all exceptions to prevent app impact
+                System.err.println("[CustomAgent] ERROR in onEnter for method #" + methodId + ": " + t.getMessage());
+
+                // Don't leave a half-started span behind
+                abandonSpan(span, scope);
+                span = null;
+                scope = null;
+            }
+
+            // Push to stack for parent-child tracking
+            stack.push(methodId, span, scope, startNanos);
+            return ON_STACK;
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+        public static void onExit(
+                @MethodRegistry.Id int methodId,
+                @Advice.Enter int frame,
+                @Advice.Thrown Throwable thrown,
+                @Advice.Local("span") Span localSpan,
+                @Advice.Local("scope") io.opentelemetry.context.Scope localScope,
+                @Advice.Local("startNanos") long localStartNanos) {
+
+            if (frame == IN_LOCALS) {
+                if (localSpan != null) {
+                    try {
+                        endSpan(methodId, localSpan, localScope, localStartNanos, thrown);
+                    } catch (Throwable t) {
+                        System.err.println("[CustomAgent] Critical error in onExit for method #" + methodId + ": " + t.getMessage());
+                        abandonSpan(localSpan, localScope);
+                    }
+                }
+                return;
+            }
+            if (frame == FOLDED) {
+                SpanStack stack = ACTIVE_SPANS_STACK.get();
+                int outer = stack.indexOf(methodId);
+                if (outer >= 0) {
+                    stack.exitRecursion(outer);
+                }
+                return;
+            }
+            if (frame == SUMMARIZED) {
+                SpanStack stack = ACTIVE_SPANS_STACK.get();
+                if (stack.isEmpty()) {
+                    return;
+                }
+                long startNanos = stack.topStartNanos();
+                stack.pop();
+                int parent = stack.size() - 1;
+                if (parent >= 0 && !stack.isSummarized(parent)) {
+                    stack.siblingsAt(parent).record(methodId, startNanos, System.nanoTime(), thrown != null);
+                }
+                return;
+            }
+            if (frame != ON_STACK) {
+                return;
+            }
+
+            Span span = null;
+            io.opentelemetry.context.Scope scope = null;
+
+            try {
+                // Get and remove the current span from stack
+                SpanStack stack = ACTIVE_SPANS_STACK.get();
+                if (stack.isEmpty()) {
+                    return;
+                }
+
+                span = stack.topSpan();
+                scope = stack.topScope();
+                long startNanos = stack.topStartNanos();
+                int recursionCalls = stack.topRecursionCalls();
+                int recursionDepth = stack.topRecursionDepth();
+                SiblingAggregates siblings = stack.topSiblings();
+                if (siblings != null && span != null) {
+                    // Summaries end before their parent; the parent's scope is still current here
+                    siblings.emit(Context.current());
+                }
+                stack.pop();
+
+                if (span == null) {
+                    if (scope != null) {
+                        try { scope.close(); } catch (Exception e) { /* ignore */ }
+                    }
+                    return;
+                }
+
+                if (recursionCalls > 0 && span.isRecording()) {
+                    span.setAttribute(RECURSION_DEPTH, recursionDepth);
+                    span.setAttribute(RECURSION_CALLS, recursionCalls);
+                }
+                endSpan(methodId, span, scope, startNanos, thrown);
+
+            } catch (Throwable t) {
+                System.err.println("[CustomAgent] Critical error in onExit for method #" + methodId + ": " + t.getMessage());
+
+                // Emergency cleanup
+                abandonSpan(span, scope);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.myorg.benchmarks;
+
+import com.tracer.genericagent.instrumentation.EnhancedGenericMethodAdvisor;
+import com.tracer.genericagent.instrumentation.InstallPlan;
+import com.tracer.genericagent.instrumentation.TransformCache;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.implementation.FixedValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Boot-time cost of weaving the application's classes, with and without the transform
+ * cache (transform.cache.dir). One invocation is one boot: a fresh AgentBuilder
+ * transformer, and the transform cache opened again when it is enabled, transforming
+ * 300 generated classes of 12 methods each, as the JVM would on first load.
+ *
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar TransformCacheBenchmark
+ *
+ * The cache is filled during setup, so cached=true measures a restart where every class
+ * is served from disk. The classes are only transformed, never defined.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransformCacheBenchmark {
+
+    private static final int CLASS_COUNT = 300;
+    private static final int METHODS_PER_CLASS = 12;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private InstallPlan plan;
+    private Path cacheRoot;
+    private ClassLoader loader;
+    private String[] names;
+    private byte[][] classFiles;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        plan = InstallPlan.create(Collections.singletonList("com.myorg.generated"),
+                Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+        loader = new URLClassLoader(new URL[0], TransformCacheBenchmark.class.getClassLoader());
+
+        names = new String[CLASS_COUNT];
+        classFiles = new byte[CLASS_COUNT][];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            DynamicType.Builder<Object> builder = new ByteBuddy()
+                    .subclass(Object.class)
+                    .name("com.myorg.generated.Service" + i);
+            for (int m = 0; m < METHODS_PER_CLASS; m++) {
+                builder = builder.defineMethod("handle" + m, String.class, Visibility.PUBLIC)
+                        .withParameters(String.class, int.class)
+                        .intercept(FixedValue.argument(0));
+            }
+            names[i] = "com/myorg/generated/Service" + i;
+            classFiles[i] = builder.make().getBytes();
+        }
+
+        cacheRoot = Files.createTempDirectory("transform-cache-benchmark");
+        if (cached) {
+            // The first boot weaves every class and fills the cache
+            boot();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(cacheRoot)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int boot() throws Exception {
+        ResettableClassFileTransformer transformer =
+                (ResettableClassFileTransformer) EnhancedGenericMethodAdvisor.buildAgentBuilder(plan).makeRaw();
+        TransformCache cache = null;
+        if (cached) {
+            cache = TransformCache.open(cacheRoot, plan);
+            transformer = cache.decorate(transformer);
+        }
+
+        int bytes = 0;
+        try {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                byte[] woven = transformer.transform(loader, names[i], null, null, classFiles[i]);
+                if (woven == null) {
+                    throw new IllegalStateException(names[i] + " was not woven");
+                }
+                bytes += woven.length;
+            }
+        } finally {
+            if (cache != null) {
+                cache.close();
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,176 @@
+package com.myorg.benchmarks;
+
+import com.tracer.genericagent.instrumentation.EnhancedGenericMethodAdvisor;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * The agent's type matcher against 100k generated class names, shaped like an app
+ * server's class path (JDK, JBoss, Spring, Hibernate, proxies, anonymous classes and
+ * the application's own packages).
+ *
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar TypeMatcherBenchmark
+ *
+ * legacy rebuilds the previous matcher: one chain of nameStartsWith/nameContains
+ * junctions and a regex per instrumented package prefix, each evaluated for every class.
+ * compiled is EnhancedGenericMethodAdvisor.buildTypeMatcher. Both must agree on every name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TypeMatcherBenchmark {
+
+    private static final int CLASS_COUNT = 100_000;
+
+    private static final List<String> PACKAGE_PREFIXES = Arrays.asList("com.myorg.app", "com.myorg.service");
+    private static final List<String> CONFIG_EXCLUDES = Arrays.asList("com.myorg.app.generated");
+
+    // The exclude list as it was before the matcher was compiled, duplicates included
+    private static final List<String> LEGACY_EXCLUDES = Arrays.asList(
+            "java.", "javax.", "sun.", "com.sun.", "jdk.", "org.jboss.logmanager", "org.slf4j",
+            "org.apache.log4j", "ch.qos.logback", "org.apache.logging", "org.apache.cxf", "org.jaxb",
+            "javax.xml.bind", "com.sun.xml.bind", "jakarta.xml.bind", "jakarta.", "com.fasterxml.jackson",
+            "io.opentelemetry", "net.bytebuddy", "org.jboss.logmanager", "org.jboss.logging", "org.slf4j",
+            "org.apache.log4j", "org.apache.logging", "org.apache.logging.log4j", "ch.qos.logback",
+            "java.util.logging", "org.apache.commons.logging", "org.apache.juli", "org.apache.tomcat.juli",
+            "org.apache.catalina.logger", "org.wildfly.common.logger", "org.springframework",
+            "org.springframework.beans", "org.springframework.context", "org.springframework.web",
+            "org.springframework.core", "org.springframework.aop", "org.springframework.boot",
+            "org.springframework.util", "com.azure", "com.azure.", "com.microsoft.azure.", "com.microsoft",
+            "com.microsoft.", "com.geico.claims.common.integration.utility.logging");
+
+    private static final String[] PACKAGES = {
+            "java.util", "java.util.concurrent", "java.lang.invoke", "javax.naming", "jdk.internal.misc",
+            "sun.nio.ch", "com.sun.proxy", "org.jboss.as.ee.component", "org.jboss.weld.bean.proxy",
+            "org.jboss.resteasy.core", "org.wildfly.extension.undertow", "io.undertow.server",
+            "org.springframework.beans.factory.support", "org.springframework.web.servlet",
+            "org.hibernate.engine.internal", "org.hibernate.persister.entity", "com.fasterxml.jackson.databind",
+            "io.netty.channel", "org.apache.commons.lang3", "com.google.common.collect", "org.postgresql.jdbc",
+            "com.myorg.app.order", "com.myorg.app.claims", "com.myorg.app.generated.dto",
+            "com.myorg.service.billing", "com.myorg.service.rating.rules"};
+
+    private static final String[] SIMPLE_NAMES = {
+            "OrderService", "ClaimProcessor", "RatingEngine", "PolicyRepository", "InvoiceMapper",
+            "HashMap", "Channel", "Handler", "Resolver", "Factory", "Support", "Delegate", "Interceptor"};
+
+    private static final String[] SUFFIXES = {
+            "", "", "", "", "", "", "$1", "$2", "$Builder", "$$$view12", "$Proxy$_$$_WeldClientProxy",
+            "$HibernateProxy$aB3x", "Logger", "BeanFactory", "$$FastClassBySpringCGLIB$$9f"};
+
+    private TypeDescription[] types;
+    private List<ElementMatcher<TypeDescription>> legacy;
+    private ElementMatcher<TypeDescription> compiled;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        types = new TypeDescription[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            String name = PACKAGES[random.nextInt(PACKAGES.length)] + '.'
+                    + SIMPLE_NAMES[random.nextInt(SIMPLE_NAMES.length)] + (i % 500)
+                    + SUFFIXES[random.nextInt(SUFFIXES.length)];
+            types[i] = new TypeDescription.Latent(name, Modifier.PUBLIC,
+                    TypeDescription.Generic.OfNonGenericType.ForLoadedType.of(Object.class));
+        }
+
+        List<String> legacyExcludes = new ArrayList<>(LEGACY_EXCLUDES);
+        legacyExcludes.addAll(CONFIG_EXCLUDES);
+        legacy = new ArrayList<>();
+        for (String prefix : PACKAGE_PREFIXES) {
+            legacy.add(legacyMatcher(prefix, legacyExcludes));
+        }
+
+        List<String> excludes = new ArrayList<>(CONFIG_EXCLUDES);
+        compiled = EnhancedGenericMethodAdvisor.buildTypeMatcher(PACKAGE_PREFIXES, excludes);
+
+        int matched = 0;
+        for (TypeDescription type : types) {
+            boolean expected = matchesLegacy(type);
+            if (expected != compiled.matches(type)) {
+                throw new IllegalStateException("Matchers disagree on " + type.getName());
+            }
+            if (expected) {
+                matched++;
+            }
+        }
+        System.out.println("[TypeMatcherBenchmark] " + matched + " of " + CLASS_COUNT + " classes match");
+    }
+
+    @Benchmark
+    public int legacy() {
+        int matched = 0;
+        for (TypeDescription type : types) {
+            if (matchesLegacy(type)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int compiled() {
+        int matched = 0;
+        for (TypeDescription type : types) {
+            if (compiled.matches(type)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private boolean matchesLegacy(TypeDescription type) {
+        // Every package prefix was its own transformation, so every class met every chain
+        boolean matched = false;
+        for (ElementMatcher<TypeDescription> matcher : legacy) {
+            matched |= matcher.matches(type);
+        }
+        return matched;
+    }
+
+    private static ElementMatcher.Junction<TypeDescription> legacyMatcher(String prefix, List<String> excludes) {
+        ElementMatcher.Junction<TypeDescription> typeMatcher = nameStartsWith(prefix);
+        for (String exPkg : excludes) {
+            typeMatcher = typeMatcher.and(not(nameStartsWith(exPkg)));
+        }
+        return typeMatcher
+                .and(not(nameContains("jaxb")))
+                .and(not(nameContains("jaxws")))
+                .and(not(nameContains(".bytebuddy.")))
+                .and(not(nameContains(".opentelemetry.")))
+                .and(not(nameContains("BeanFactory")))
+                .and(not(nameContains("BeanCreation")))
+                .and(not(nameContains("ApplicationContext")))
+                .and(not(nameContains("ContextLoader")))
+                .and(not(nameContains("LoaderUtil")))
+                .and(not(nameContains("log4j.util")))
+                .and(not(nameContains("LogManager")))
+                .and(not(nameContains("Logger")))
+                .and(not(nameContains("Logging")))
+                .and(not(nameContains("Interpolator")))
+                .and(not(nameContains("ContextData")))
+                .and(not(nameContains("ClassLoaderContext")))
+                .and(not(nameContains("ReflectionUtil")))
+                .and(not(nameContains("$$$view")))
+                .and(not(nameContains("$Proxy")))
+                .and(not(nameContains("$$EnhancedBy")))
+                .and(not(nameContains("FastClass")))
+                .and(not(nameContains("$$_javassist_")))
+                .and(not(nameContains("$HibernateProxy")))
+                .and(not(nameContains("_WeldClientProxy")))
+                .and(not(nameContains("$EJBClient")))
+                .and(not(nameMatches(".*\\$\\d+$")));
+    }
+}
@@ -0,0 +1,73 @@
+package com.myorg.benchmarks;
+
+import com.myorg.app.OrderService;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs OrderService.processOrder on 100k virtual threads (needs JDK 21; the executor is
+ * looked up reflectively so the module still builds on older JDKs).
+ *
+ * Each invocation is one batch of 100k orders, so the score is the time per batch;
+ * throughput is 100k divided by it. The heap used while all 100k threads are alive is
+ * printed after every iteration. Run once without and once with the agent:
+ *
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar VirtualThreadBenchmark -prof gc
+ *   java -jar performance-tests/target/performance-tests-1.0.0.jar VirtualThreadBenchmark -prof gc \
+ *       -jvmArgsAppend "-javaagent:my-standalone-agent/target/my-standalone-agent-1.0.0.jar"
+ *
+ * with instrument.packages=com.myorg.app in the agent config.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VirtualThreadBenchmark {
+
+    private static final int TASKS = 100_000;
+
+    private OrderService svc;
+    private Method newVirtualThreadPerTaskExecutor;
+    private MemoryMXBean memoryBean;
+    private long liveHeapBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        svc = new OrderService();
+        memoryBean = ManagementFactory.getMemoryMXBean();
+        try {
+            newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("VirtualThreadBenchmark needs JDK 21 or later", e);
+        }
+    }
+
+    @Benchmark
+    public void processOrdersOnVirtualThreads() throws Exception {
+        ExecutorService executor = (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+        for (int i = 0; i < TASKS; i++) {
+            String orderId = "VT-" + i;
+            executor.submit(() -> svc.processOrder(orderId));
+        }
+
+        // Orders sleep for 150 ms, so right after submitting nearly all threads are still alive
+        liveHeapBytes = memoryBean.getHeapMemoryUsage().getUsed();
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportHeap() {
+        System.out.println("[VirtualThreadBenchmark] Heap used with " + TASKS + " live virtual threads: " +
+                (liveHeapBytes / (1024 * 1024)) + " MB");
+    }
+}